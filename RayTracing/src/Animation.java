@@ -0,0 +1,57 @@
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//Per-frame camera and instance transforms for a sequence render
+//Instances without a track stay where they were added to the scene
+class Animation {
+    Environment scene;
+    Camera[] cameras; //one per frame
+    Map<Instance, Transform[]> tracks =
+            new LinkedHashMap<Instance, Transform[]>();
+
+    Animation(Environment rm, Camera[] cams) {
+        this.scene = rm;
+        this.cameras = cams;
+    }
+
+    int frames() {
+        return this.cameras.length;
+    }
+
+    void track(Instance inst, Transform[] perFrame) {
+        if (perFrame.length != this.cameras.length) {
+            throw new IllegalArgumentException("Track has " + perFrame.length
+                    + " transforms for " + this.cameras.length + " frames");
+        }
+        this.tracks.put(inst, perFrame);
+    }
+
+    //Transforms that change going into frame f (all tracks for frame 0)
+    Map<Instance, Transform> changes(int f) {
+        Map<Instance, Transform> out =
+                new IdentityHashMap<Instance, Transform>();
+        for (Map.Entry<Instance, Transform[]> e : this.tracks.entrySet()) {
+            Transform[] t = e.getValue();
+            if (f == 0 || !Arrays.equals(t[f].m, t[f - 1].m)) {
+                out.put(e.getKey(), t[f]);
+            }
+        }
+        return out;
+    }
+
+    //Camera circling center at the given radius and height along -x (up
+    //in the image), looking at the center
+    static Camera[] turntable(Vector center, double radius, double height,
+            double fov, int frames) {
+        Camera[] cams = new Camera[frames];
+        for (int f = 0; f < frames; f++) {
+            double a = 2 * RayTracer.PI * f / frames;
+            Vector pos = center.vAdd(new Vector(-height,
+                    radius * Math.sin(a), radius * Math.cos(a)));
+            cams[f] = new Camera(pos, center.vSub(pos), fov);
+        }
+        return cams;
+    }
+}
@@ -0,0 +1,231 @@
+import java.util.List;
+import java.util.Map;
+
+//Bounding volume hierarchy over bounded objects
+//Nodes are flattened into primitive arrays (depth first, the left child
+//follows its parent) so traversal walks plain arrays instead of node objects
+class Bvh {
+    private static final int LEAF_SIZE = 2;
+
+    double[] box; //6 doubles per node: min x, y, z, max x, y, z
+    int[] start; //leaf: first object index, interior: right child
+    int[] count; //objects in leaf, 0 for interior nodes
+    int[] parent; //-1 for the root
+    int[] leafOf; //leaf node of every object
+    Primitive[] objs;
+    int nodes;
+
+    Bvh(List<Primitive> list) {
+        int n = list.size();
+        this.objs = list.toArray(new Primitive[n]);
+        int max = Math.max(1, 2 * n);
+        this.box = new double[max * 6];
+        this.start = new int[max];
+        this.count = new int[max];
+        this.parent = new int[max];
+        this.leafOf = new int[n];
+        double[][] bounds = new double[n][];
+        for (int i = 0; i < n; i++) {
+            bounds[i] = this.objs[i].bounds();
+        }
+        this.nodes = 0;
+        if (n > 0) {
+            this.build(bounds, 0, n);
+            this.parent[0] = -1;
+        }
+    }
+
+    //Copy that shares the tree layout, see refitted
+    private Bvh(Bvh b) {
+        this.box = b.box.clone();
+        this.objs = b.objs.clone();
+        this.start = b.start;
+        this.count = b.count;
+        this.parent = b.parent;
+        this.leafOf = b.leafOf;
+        this.nodes = b.nodes;
+    }
+
+    //Median split along the widest axis of the object centers
+    private int build(double[][] bounds, int lo, int hi) {
+        int node = this.nodes++;
+        double[] b = { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE,
+                -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+        double[] c = { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE,
+                -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+        for (int i = lo; i < hi; i++) {
+            for (int a = 0; a < 3; a++) {
+                b[a] = Math.min(b[a], bounds[i][a]);
+                b[a + 3] = Math.max(b[a + 3], bounds[i][a + 3]);
+                double mid = (bounds[i][a] + bounds[i][a + 3]) / 2;
+                c[a] = Math.min(c[a], mid);
+                c[a + 3] = Math.max(c[a + 3], mid);
+            }
+        }
+        System.arraycopy(b, 0, this.box, node * 6, 6);
+        if (hi - lo <= LEAF_SIZE) {
+            this.start[node] = lo;
+            this.count[node] = hi - lo;
+            for (int i = lo; i < hi; i++) {
+                this.leafOf[i] = node;
+            }
+            return node;
+        }
+        int axis = 0;
+        for (int a = 1; a < 3; a++) {
+            if (c[a + 3] - c[a] > c[axis + 3] - c[axis]) {
+                axis = a;
+            }
+        }
+        int mid = (lo + hi) / 2;
+        this.select(bounds, lo, hi, mid, axis);
+        this.parent[this.build(bounds, lo, mid)] = node;
+        int right = this.build(bounds, mid, hi);
+        this.parent[right] = node;
+        this.start[node] = right;
+        this.count[node] = 0;
+        return node;
+    }
+
+    //Copy with some objects replaced by moved ones (same index, new bounds)
+    //Only the boxes above the moved objects are refit; the tree layout is
+    //shared, so this stays cheap when few objects move, but the tree loses
+    //quality as objects drift from where it was built
+    Bvh refitted(Map<Primitive, Primitive> swap) {
+        Bvh b = new Bvh(this);
+        for (int i = 0; i < b.objs.length; i++) {
+            Primitive moved = swap.get(b.objs[i]);
+            if (moved == null) {
+                continue;
+            }
+            b.objs[i] = moved;
+            for (int node = b.leafOf[i]; node >= 0; node = b.parent[node]) {
+                b.fit(node);
+            }
+        }
+        return b;
+    }
+
+    //Recompute a node's box from its objects or children
+    private void fit(int node) {
+        int o = node * 6;
+        if (this.count[node] > 0) {
+            int end = this.start[node] + this.count[node];
+            for (int i = this.start[node]; i < end; i++) {
+                double[] ob = this.objs[i].bounds();
+                for (int a = 0; a < 3; a++) {
+                    if (i == this.start[node] || ob[a] < this.box[o + a]) {
+                        this.box[o + a] = ob[a];
+                    }
+                    if (i == this.start[node]
+                            || ob[a + 3] > this.box[o + a + 3]) {
+                        this.box[o + a + 3] = ob[a + 3];
+                    }
+                }
+            }
+        } else {
+            int l = (node + 1) * 6;
+            int r = this.start[node] * 6;
+            for (int a = 0; a < 3; a++) {
+                this.box[o + a] = Math.min(this.box[l + a], this.box[r + a]);
+                this.box[o + a + 3] = Math.max(this.box[l + a + 3],
+                        this.box[r + a + 3]);
+            }
+        }
+    }
+
+    private static double center(double[] b, int axis) {
+        return b[axis] + b[axis + 3];
+    }
+
+    //Partial sort so that objects left of k have smaller centers (quickselect)
+    private void select(double[][] bounds, int lo, int hi, int k, int axis) {
+        hi--;
+        while (lo < hi) {
+            double pivot = center(bounds[(lo + hi) >>> 1], axis);
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (center(bounds[i], axis) < pivot) {
+                    i++;
+                }
+                while (center(bounds[j], axis) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    double[] tb = bounds[i];
+                    bounds[i] = bounds[j];
+                    bounds[j] = tb;
+                    Primitive to = this.objs[i];
+                    this.objs[i] = this.objs[j];
+                    this.objs[j] = to;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    //Slab test, returns true if the ray enters the node before tMax
+    private boolean hitBox(int node, Ray ray, double ix, double iy, double iz,
+            double tMax) {
+        int o = node * 6;
+        double t1 = (this.box[o] - ray.origin.x) * ix;
+        double t2 = (this.box[o + 3] - ray.origin.x) * ix;
+        double tNear = Math.min(t1, t2);
+        double tFar = Math.max(t1, t2);
+        t1 = (this.box[o + 1] - ray.origin.y) * iy;
+        t2 = (this.box[o + 4] - ray.origin.y) * iy;
+        tNear = Math.max(tNear, Math.min(t1, t2));
+        tFar = Math.min(tFar, Math.max(t1, t2));
+        t1 = (this.box[o + 2] - ray.origin.z) * iz;
+        t2 = (this.box[o + 5] - ray.origin.z) * iz;
+        tNear = Math.max(tNear, Math.min(t1, t2));
+        tFar = Math.min(tFar, Math.max(t1, t2));
+        return tFar >= Math.max(tNear, 0) && tNear < tMax;
+    }
+
+    void intersect(Ray ray, Intersection nearest, RenderStats.Counter cost) {
+        if (this.nodes == 0) {
+            return;
+        }
+        double ix = 1 / ray.direction.x;
+        double iy = 1 / ray.direction.y;
+        double iz = 1 / ray.direction.z;
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            if (!this.hitBox(node, ray, ix, iy, iz, nearest.scalar)) {
+                continue;
+            }
+            if (this.count[node] > 0) {
+                int end = this.start[node] + this.count[node];
+                for (int i = this.start[node]; i < end; i++) {
+                    this.objs[i].intersect(ray, nearest, cost);
+                }
+            } else {
+                stack[top++] = this.start[node];
+                stack[top++] = node + 1;
+            }
+        }
+    }
+
+    //Bounds of the whole hierarchy, null if empty
+    double[] bounds() {
+        if (this.nodes == 0) {
+            return null;
+        }
+        double[] b = new double[6];
+        System.arraycopy(this.box, 0, b, 0, 6);
+        return b;
+    }
+}
@@ -0,0 +1,75 @@
+//Pinhole camera
+//Immutable, so render threads can keep the instance they started with
+//while the preview swaps in a moved one.
+//As in the original fixed camera, the scene's x axis points down the image:
+//u runs down the image rows and v across the columns.
+class Camera {
+    Vector position;
+    Vector direction;
+    Vector u, v;
+    double fov; //half angle of the view along u, PI/4 in the original camera
+
+    //The original camera, at the origin looking down -z
+    Camera() {
+        this(new Vector(0, 0, 0), new Vector(0, 0, -1), RayTracer.PI / 4);
+    }
+
+    Camera(Vector pos, Vector dir, double angle) {
+        this.position = pos;
+        this.direction = dir.norm();
+        this.fov = angle;
+        //Keep the image's down direction close to +x, fall back to -y when
+        //looking straight along x
+        Vector down = new Vector(1, 0, 0);
+        if (Math.abs(this.direction.x) > 0.999) {
+            down = new Vector(0, -1, 0);
+        }
+        this.v = cross(down, this.direction).norm();
+        this.u = cross(this.direction, this.v);
+    }
+
+    private static Vector cross(Vector a, Vector b) {
+        return new Vector(a.y * b.z - a.z * b.y, a.z * b.x - a.x * b.z,
+                a.x * b.y - a.y * b.x);
+    }
+
+    //Ray through row x of w and column y of h, jittered by (jx, jy) on
+    //the image plane
+    Ray ray(double x, double y, double w, double h, double jx, double jy) {
+        double viewX = this.fov;
+        double viewY = (h / w) * viewX;
+        double a = ((2 * x - w) / w) * Math.tan(viewX) + jx;
+        double b = ((2 * y - h) / h) * Math.tan(viewY) + jy;
+        return new Ray(this.position,
+                this.direction.vAdd(this.u.sMult(a)).vAdd(this.v.sMult(b)));
+    }
+
+    //Move in camera space: down the image, across it and forward
+    Camera moved(double down, double across, double forward) {
+        Vector p = this.position.vAdd(this.u.sMult(down))
+                .vAdd(this.v.sMult(across))
+                .vAdd(this.direction.sMult(forward));
+        return new Camera(p, this.direction, this.fov);
+    }
+
+    //Turn by angles (radians) toward the image's down and across directions
+    Camera turned(double down, double across) {
+        Vector d = this.direction.sMult(Math.cos(down) * Math.cos(across))
+                .vAdd(this.u.sMult(Math.sin(down)))
+                .vAdd(this.v.sMult(Math.cos(down) * Math.sin(across)));
+        return new Camera(this.position, d, this.fov);
+    }
+
+    Camera withFov(double angle) {
+        return new Camera(this.position, this.direction,
+                Math.max(0.05, Math.min(1.5, angle)));
+    }
+
+    @Override
+    public String toString() {
+        return "pos=" + this.position.x + "," + this.position.y + ","
+                + this.position.z + ";dir=" + this.direction.x + ","
+                + this.direction.y + "," + this.direction.z + ";fov="
+                + this.fov;
+    }
+}
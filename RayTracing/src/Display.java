@@ -5,8 +5,10 @@ import java.awt.Dimension;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.IOException;
 
 import javax.swing.JButton;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JMenu;
@@ -113,6 +115,18 @@ class Display extends JFrame implements ActionListener {
         JMenuItem save = new JMenuItem("Save Image");
         save.addActionListener(this);
         file.add(save);
+        //Render cost diagnostics
+        JCheckBoxMenuItem stats = new JCheckBoxMenuItem("Record Render Cost");
+        stats.setSelected(RayMain.STATS);
+        stats.addActionListener(this);
+        file.add(stats);
+        JMenuItem saveStats = new JMenuItem("Save Render Cost");
+        saveStats.addActionListener(this);
+        file.add(saveStats);
+        //Interactive camera preview
+        JMenuItem preview = new JMenuItem("Interactive Preview");
+        preview.addActionListener(this);
+        file.add(preview);
         //Quit button
         JMenuItem quit = new JMenuItem("Quit");
         quit.addActionListener(this);
@@ -152,6 +166,19 @@ class Display extends JFrame implements ActionListener {
             RayMain.update();
         } else if (choice.equals("Save Image")) {
             //Not yet implemented
+        } else if (choice.equals("Record Render Cost")) {
+            RayMain.STATS = ((JCheckBoxMenuItem) ae.getSource()).isSelected();
+        } else if (choice.equals("Save Render Cost")) {
+            //Heatmaps and CSV of the last render, written to the working directory
+            if (RayTracer.stats != null) {
+                try {
+                    RayTracer.stats.save("render_cost");
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        } else if (choice.equals("Interactive Preview")) {
+            PreviewWindow.open();
         } else if (choice.equals("Quit")) {
             System.exit(0);
         } else {
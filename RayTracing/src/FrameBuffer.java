@@ -0,0 +1,76 @@
+import java.awt.image.BufferedImage;
+
+//Accumulation buffer for headless renders
+//Keeps running color sums and sample counts per pixel, so the image can be
+//read at any time while passes are still being added
+class FrameBuffer {
+    int width, height;
+    double[] rgb; //3 sums per pixel
+    int[] samples;
+    volatile int passes; //completed passes over the whole frame
+    SharedFrame shared; //published copy for other processes, null when off
+    RenderStats stats; //per-pixel render cost, null when off
+
+    FrameBuffer(int w, int h) {
+        this.width = w;
+        this.height = h;
+        this.rgb = new double[w * h * 3];
+        this.samples = new int[w * h];
+    }
+
+    //Each pixel is only written by the task that owns its row
+    void add(int x, int y, Vector color) {
+        int p = y * this.width + x;
+        this.rgb[p * 3] += color.x;
+        this.rgb[p * 3 + 1] += color.y;
+        this.rgb[p * 3 + 2] += color.z;
+        this.samples[p]++;
+    }
+
+    //Called by the task that owns rows y1 to y2 once it has added to them
+    void publish(int y1, int y2) {
+        if (this.shared != null) {
+            this.shared.publish(this, y1, y2);
+        }
+    }
+
+    void endPass() {
+        this.passes++;
+        if (this.shared != null) {
+            this.shared.setPasses(this.passes);
+        }
+    }
+
+    //Same mapping as RayTracer.toPixel
+    private static int channel(double sum, int n) {
+        double c = RayTracer.AMBIENT + (sum / n);
+        if (c > 255) {
+            c = 255;
+        } else if (c < 0) {
+            c = 0;
+        }
+        return (int) c;
+    }
+
+    //Display color of pixel p, black without samples
+    int packed(int p) {
+        int n = this.samples[p];
+        if (n == 0) {
+            return 0;
+        }
+        return (channel(this.rgb[p * 3], n) << 16)
+                | (channel(this.rgb[p * 3 + 1], n) << 8)
+                | channel(this.rgb[p * 3 + 2], n);
+    }
+
+    BufferedImage toImage() {
+        BufferedImage img = new BufferedImage(this.width, this.height,
+                BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < this.height; y++) {
+            for (int x = 0; x < this.width; x++) {
+                img.setRGB(x, y, this.packed(y * this.width + x));
+            }
+        }
+        return img;
+    }
+}
@@ -0,0 +1,63 @@
+//Instanced geometry
+//An instance only stores a transform and a reference to a shared environment,
+//which keeps its own hierarchy in object space. Rays are moved into object
+//space and traced through that hierarchy (two level traversal), so memory
+//grows with the unique geometry rather than with the number of copies.
+//Materials come from the shared objects, and hits always report the shared
+//object (with a world space normal), never the instance itself.
+class Instance extends Primitive {
+    Environment geometry;
+    Transform xf;
+    double[] box; //world bounds
+    Instance original; //the instance this was posed from, see Environment.posed
+
+    Instance(Environment geom, Transform t) {
+        this.original = this;
+        this.geometry = geom;
+        if (geom.bvh == null) {
+            geom.build();
+        }
+        this.setTransform(t);
+    }
+
+    //Copy of this instance moved to t, for a new animation frame
+    Instance posed(Transform t) {
+        Instance next = new Instance(this.geometry, t);
+        next.original = this.original;
+        return next;
+    }
+
+    //Move the instance, the enclosing environment must be refit or rebuilt
+    void setTransform(Transform t) {
+        this.xf = t;
+        double[] local = this.geometry.bounds();
+        if (local == null) {
+            this.box = null;
+        } else {
+            this.box = t.bounds(local);
+        }
+    }
+
+    @Override
+    void intersect(Ray ray, Intersection nearest, RenderStats.Counter cost) {
+        Vector dir = this.xf.dirToObject(ray.direction);
+        //Object space distances are stretched by the transform's scale
+        double len = dir.mag();
+        Ray local = new Ray(this.xf.toObject(ray.origin), dir);
+        Intersection hit = new Intersection();
+        hit.scalar = nearest.scalar * len;
+        this.geometry.intersecting(local, hit, cost);
+        if (hit.miss()) {
+            return;
+        }
+        Vector point = local.origin.vAdd(local.direction.sMult(hit.scalar));
+        nearest.scalar = hit.scalar / len;
+        nearest.objHit = hit.objHit;
+        nearest.hitNormal = this.xf.normalToWorld(hit.normal(point));
+    }
+
+    @Override
+    double[] bounds() {
+        return this.box;
+    }
+}
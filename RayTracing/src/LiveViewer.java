@@ -0,0 +1,178 @@
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+//Viewer for a SharedFrame published by another process
+//Polls the mapped file and copies only the tiles whose sequence number
+//moved, straight into the displayed image's pixels. A new render replaces
+//the file, which is noticed by its file key and mapped again.
+//Arguments: <live file> [snapshot.png]
+//With a snapshot file, writes the current state there and exits instead.
+class LiveViewer extends JFrame {
+    private static final long serialVersionUID = 1L;
+    private static final int POLL_MS = 100;
+    //A tile odd for this long belongs to a writer that is gone
+    private static final long STUCK_NANOS = 2000000000L;
+
+    private final File file;
+    private SharedFrame frame;
+    private Object fileKey;
+    private BufferedImage img;
+    private int[] seen; //last sequence number copied per tile
+    private final JPanel view;
+    private final JLabel info;
+
+    LiveViewer(File f) {
+        super("Live View - " + f.getName());
+        this.file = f;
+        this.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        this.view = new JPanel() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void paintComponent(Graphics g) {
+                super.paintComponent(g);
+                if (LiveViewer.this.img != null) {
+                    g.drawImage(LiveViewer.this.img, 0, 0, null);
+                }
+            }
+        };
+        //Resized to the frame once one is mapped
+        this.view.setPreferredSize(new Dimension(300, 300));
+        this.add(this.view, BorderLayout.CENTER);
+        this.info = new JLabel("Waiting for " + f);
+        this.add(this.info, BorderLayout.PAGE_END);
+        this.pack();
+
+        new Timer(POLL_MS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                LiveViewer.this.refresh();
+            }
+        }).start();
+    }
+
+    //Identity of the file currently at the path, null if there is none
+    //Where the file system has no file keys (Windows), a replaced frame is
+    //told apart by its creation time and size instead
+    private static Object key(File f) {
+        try {
+            BasicFileAttributes a = Files.readAttributes(f.toPath(),
+                    BasicFileAttributes.class);
+            if (a.fileKey() != null) {
+                return a.fileKey();
+            }
+            return Arrays.asList(a.creationTime(), a.size());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    //Map the file again if a new frame replaced it
+    private boolean remap() {
+        Object k = key(this.file);
+        if (k == null || k.equals(this.fileKey)) {
+            return this.frame != null;
+        }
+        try {
+            this.frame = SharedFrame.open(this.file);
+        } catch (IOException e) {
+            //Not written yet, try again on the next poll
+            return this.frame != null;
+        }
+        this.fileKey = k;
+        this.img = new BufferedImage(this.frame.width, this.frame.height,
+                BufferedImage.TYPE_INT_RGB);
+        this.seen = new int[this.frame.tiles];
+        Arrays.fill(this.seen, -1);
+        this.view.setPreferredSize(new Dimension(this.frame.width,
+                this.frame.height));
+        this.pack();
+        return true;
+    }
+
+    private void refresh() {
+        if (!this.remap()) {
+            return;
+        }
+        int[] argb = ((DataBufferInt) this.img.getRaster().getDataBuffer())
+                .getData();
+        boolean changed = false;
+        for (int t = 0; t < this.frame.tiles; t++) {
+            int seq = this.frame.sequence(t);
+            if (seq == this.seen[t] || (seq & 1) != 0) {
+                continue;
+            }
+            //A torn copy is shown until the next poll reads the tile again
+            int got = this.frame.read(t, argb);
+            if (got >= 0) {
+                this.seen[t] = got;
+            }
+            changed = true;
+        }
+        if (changed) {
+            this.view.repaint();
+        }
+        this.info.setText(this.frame.width + "x" + this.frame.height + ", "
+                + this.frame.passes() + "/" + this.frame.spp() + " spp");
+    }
+
+    //Consistent copy of every tile, retrying tiles caught mid write
+    //Throws IOException if a tile stays mid write, as when the renderer
+    //died while writing it
+    static BufferedImage snapshot(SharedFrame frame) throws IOException {
+        BufferedImage img = new BufferedImage(frame.width, frame.height,
+                BufferedImage.TYPE_INT_RGB);
+        int[] argb = ((DataBufferInt) img.getRaster().getDataBuffer())
+                .getData();
+        for (int t = 0; t < frame.tiles; t++) {
+            long start = System.nanoTime();
+            while (frame.read(t, argb) < 0) {
+                if (System.nanoTime() - start > STUCK_NANOS) {
+                    throw new IOException("Tile " + t
+                            + " is stuck mid write, is the renderer alive?");
+                }
+                Thread.yield();
+            }
+        }
+        return img;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: LiveViewer <live file> [snapshot.png]");
+            return;
+        }
+        final File f = new File(args[0]);
+        if (args.length > 1) {
+            SharedFrame frame = SharedFrame.open(f);
+            int passes = frame.passes();
+            ImageIO.write(snapshot(frame), "png", new File(args[1]));
+            System.out.println("Saved " + args[1] + " at " + passes + "/"
+                    + frame.spp() + " spp");
+            return;
+        }
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                new LiveViewer(f).setVisible(true);
+            }
+        });
+    }
+}
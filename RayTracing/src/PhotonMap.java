@@ -0,0 +1,506 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.imageio.ImageIO;
+
+//Caustic photon map
+//A pre-pass shoots photons from the emissive spheres and keeps those that
+//reach a diffuse surface through one or more specular or refractive
+//bounces. Diffuse hits then estimate that light from the photon density
+//instead of finding the emitter by blind hemisphere sampling, and trace
+//stops counting emission at the end of such diffuse-specular chains so
+//nothing is counted twice.
+//Photons all carry the same flux, so only positions are stored, in a
+//balanced kd-tree laid out in place over one float array (the median of a
+//range is its root) with one byte per photon for the split axis.
+class PhotonMap {
+    private static final int BYTES_PER_PHOTON = 13;
+    private static final int PARALLEL_BUILD = 8192; //smaller ranges in one task
+    private static final int SHOTS_PER_PHOTON = 64; //give up on dark scenes
+    private static final int SHOTS_PER_TASK = 16384; //per task and round
+
+    //Path states of trace, to hand emission over to the map
+    static final int DIRECT = 0; //no diffuse hit yet, or no map
+    static final int DIFFUSE = 1; //last hit diffuse
+    static final int CAUSTIC = 2; //diffuse, then only specular or refractive
+
+    long budget; //bytes the map was sized for
+    int maxDepth; //bounces photons were followed for
+    int count;
+    float[] pos; //x, y, z per photon
+    byte[] axis;
+    double[] bounds; //box of the photons, lets most queries out early
+    double flux; //per photon
+    double radius; //gather radius
+    Set<Objects> sources = new HashSet<Objects>(); //emitters photons cover
+
+    //Emissive sphere photons are shot from
+    private static final class Emitter {
+        Objects obj;
+        double power; //total flux, pi * radiance * area
+        double area;
+    }
+
+    private PhotonMap() {
+    }
+
+    //State after a hit on material m
+    static int next(PhotonMap map, int state, Material m) {
+        if (map == null) {
+            return DIRECT;
+        }
+        if (m == Material.DIFFUSE) {
+            return DIFFUSE;
+        }
+        return state == DIRECT ? DIRECT : CAUSTIC;
+    }
+
+    //Whether trace should add the emission of obj, reached in state
+    static boolean emits(PhotonMap map, int state, Objects obj) {
+        return state != CAUSTIC || !map.sources.contains(obj);
+    }
+
+    //Give rm the caustic map set asks for, keeping the current one while
+    //the budget and depth stay the same
+    //Returns false if cancel was set while building
+    static boolean prepare(Environment rm, RenderSettings set,
+            AtomicBoolean cancel) throws InterruptedException {
+        if (set.causticBytes <= 0) {
+            rm.caustics = null;
+            return true;
+        }
+        PhotonMap map = rm.caustics;
+        if (map != null && map.budget == set.causticBytes
+                && map.maxDepth == set.maxDepth) {
+            return true;
+        }
+        rm.caustics = build(rm, set.causticBytes, set.maxDepth, cancel);
+        return rm.caustics != null;
+    }
+
+    //Build a map of at most budget bytes for rm, in parallel
+    //Shooting stops early once a round lands no caustic photons (a scene
+    //without specular or refractive paths from its lights), and returns
+    //null if cancel is set
+    static PhotonMap build(final Environment rm, long budget,
+            final int maxDepth, AtomicBoolean cancel)
+            throws InterruptedException {
+        if (rm.bvh == null) {
+            rm.build();
+        }
+        PhotonMap map = new PhotonMap();
+        map.budget = budget;
+        map.maxDepth = maxDepth;
+        int max = (int) Math.min(Integer.MAX_VALUE / 3,
+                budget / BYTES_PER_PHOTON);
+        double[] box = sceneBox(rm);
+        double diag = Math.sqrt(sq(box[3] - box[0]) + sq(box[4] - box[1])
+                + sq(box[5] - box[2]));
+        map.radius = diag / 100;
+        final List<Emitter> emitters = emitters(rm);
+        double total = 0;
+        for (Emitter e : emitters) {
+            total += e.power;
+            map.sources.add(e.obj);
+        }
+        if (max == 0 || total == 0) {
+            map.pos = new float[0];
+            map.axis = new byte[0];
+            return map;
+        }
+        //Grown as photons land, a scene that lands few never pays for
+        //the whole budget
+        map.pos = new float[0];
+
+        //Shoot in rounds until the budget is full
+        int tasks = Runtime.getRuntime().availableProcessors() * 4;
+        long shot = 0;
+        long landed = 0; //caustic photons, including any cut off at the end
+        while (map.count < max && shot < (long) SHOTS_PER_PHOTON * max) {
+            final int perTask = Math.min(SHOTS_PER_TASK,
+                    Math.max(1024, (max - map.count) / tasks));
+            List<Callable<float[]>> work = new ArrayList<Callable<float[]>>();
+            for (int t = 0; t < tasks; t++) {
+                work.add(new Callable<float[]>() {
+                    @Override
+                    public float[] call() {
+                        return shoot(rm, emitters, perTask, maxDepth);
+                    }
+                });
+            }
+            shot += (long) tasks * perTask;
+            long before = landed;
+            try {
+                for (Future<float[]> f : RayTracer.WORKERS.invokeAll(work)) {
+                    float[] got = f.get();
+                    landed += got.length / 3;
+                    int n = Math.min(got.length / 3, max - map.count);
+                    map.reserve(map.count + n, max);
+                    System.arraycopy(got, 0, map.pos, map.count * 3, n * 3);
+                    map.count += n;
+                }
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+            if (cancel.get()) {
+                return null;
+            }
+            if (landed == before) {
+                break;
+            }
+        }
+        //Photons dropped for the budget still took their share of the flux
+        map.flux = total / shot * landed / Math.max(1, map.count);
+        if (map.count * 3 < map.pos.length) {
+            float[] trimmed = new float[map.count * 3];
+            System.arraycopy(map.pos, 0, trimmed, 0, map.count * 3);
+            map.pos = trimmed;
+        }
+        map.axis = new byte[map.count];
+        map.bounds = new double[] { Double.MAX_VALUE, Double.MAX_VALUE,
+                Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE,
+                -Double.MAX_VALUE };
+        for (int i = 0; i < map.count * 3; i++) {
+            map.bounds[i % 3] = Math.min(map.bounds[i % 3], map.pos[i]);
+            map.bounds[i % 3 + 3] = Math.max(map.bounds[i % 3 + 3],
+                    map.pos[i]);
+        }
+        ForkJoinPool.commonPool().invoke(new Balance(map, 0, map.count));
+        return map;
+    }
+
+    //Room for n photons in pos, at least doubling and at most max
+    private void reserve(int n, int max) {
+        if (n * 3 <= this.pos.length) {
+            return;
+        }
+        long grown = Math.max(n, Math.min(max, 2L * this.pos.length / 3));
+        this.pos = Arrays.copyOf(this.pos, (int) grown * 3);
+    }
+
+    private static double sq(double v) {
+        return v * v;
+    }
+
+    //Box of the bounded objects, sets the gather radius
+    private static double[] sceneBox(Environment rm) {
+        double[] b = rm.bvh.bounds();
+        if (b == null) {
+            return new double[] { -1, -1, -1, 1, 1, 1 };
+        }
+        return b;
+    }
+
+    //Emissive spheres of the scene. An infinite plane cannot be covered by a
+    //finite number of photons, so emissive planes stay with trace.
+    private static List<Emitter> emitters(Environment rm) {
+        List<Emitter> list = new ArrayList<Emitter>();
+        for (Primitive p : rm.Room) {
+            if (!(p instanceof Sphere) || ((Sphere) p).emittance <= 0) {
+                continue;
+            }
+            Sphere obj = (Sphere) p;
+            Emitter e = new Emitter();
+            e.obj = obj;
+            double r = obj.radius;
+            e.area = 4 * RayTracer.PI * r * r;
+            //trace adds twice the emittance as radiance, and on both sides
+            //of a refractive surface
+            e.power = RayTracer.PI * 2 * obj.emittance * e.area;
+            if (obj.type == Material.REFRACTIVE) {
+                e.power *= 2;
+            }
+            list.add(e);
+        }
+        return list;
+    }
+
+    //Cosine weighted direction around n
+    private static Vector cosineDir(Vector n, ThreadLocalRandom rnd) {
+        double r = Math.sqrt(rnd.nextDouble());
+        double phi = 2 * RayTracer.PI * rnd.nextDouble();
+        Vector t = Math.abs(n.x) > 0.9 ? new Vector(0, 1, 0)
+                : new Vector(1, 0, 0);
+        Vector u = new Vector(n.y * t.z - n.z * t.y, n.z * t.x - n.x * t.z,
+                n.x * t.y - n.y * t.x).norm();
+        Vector v = new Vector(n.y * u.z - n.z * u.y, n.z * u.x - n.x * u.z,
+                n.x * u.y - n.y * u.x);
+        return u.sMult(r * Math.cos(phi)).vAdd(v.sMult(r * Math.sin(phi)))
+                .vAdd(n.sMult(Math.sqrt(1 - r * r)));
+    }
+
+    //Shoot n photons, returns the positions of the caustic ones
+    private static float[] shoot(Environment rm, List<Emitter> emitters,
+            int n, int maxDepth) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        double total = 0;
+        for (Emitter e : emitters) {
+            total += e.power;
+        }
+        float[] out = new float[Math.max(3, n / 8 * 3)];
+        int stored = 0;
+        for (int i = 0; i < n; i++) {
+            //Pick an emitter by power
+            double pick = rnd.nextDouble() * total;
+            Emitter e = emitters.get(emitters.size() - 1);
+            for (Emitter c : emitters) {
+                pick -= c.power;
+                if (pick < 0) {
+                    e = c;
+                    break;
+                }
+            }
+            //Uniform point on the sphere
+            Sphere s = (Sphere) e.obj;
+            double z = 1 - 2 * rnd.nextDouble();
+            double phi = 2 * RayTracer.PI * rnd.nextDouble();
+            double r = Math.sqrt(1 - z * z);
+            Vector normal = new Vector(r * Math.cos(phi), r * Math.sin(phi), z);
+            Vector start = s.center.vAdd(normal.sMult(s.radius));
+            if (s.type == Material.REFRACTIVE && rnd.nextBoolean()) {
+                normal = normal.sMult(-1);
+            }
+            Vector hit = follow(rm, new Ray(start, cosineDir(normal, rnd)),
+                    maxDepth);
+            if (hit != null) {
+                if (stored * 3 == out.length) {
+                    float[] grown = new float[out.length * 2];
+                    System.arraycopy(out, 0, grown, 0, out.length);
+                    out = grown;
+                }
+                out[stored * 3] = (float) hit.x;
+                out[stored * 3 + 1] = (float) hit.y;
+                out[stored * 3 + 2] = (float) hit.z;
+                stored++;
+            }
+        }
+        float[] trimmed = new float[stored * 3];
+        System.arraycopy(out, 0, trimmed, 0, stored * 3);
+        return trimmed;
+    }
+
+    //Follow a photon through specular and refractive bounces (same rules as
+    //trace), returning where it lands on a diffuse surface, or null if it
+    //lands there directly, is lost or is totally reflected
+    private static Vector follow(Environment rm, Ray ray, int maxDepth) {
+        for (int depth = 0; depth <= maxDepth; depth++) {
+            Intersection hit = rm.intersecting(ray);
+            if (hit.miss()) {
+                return null;
+            }
+            Vector point = ray.origin.vAdd(ray.direction.sMult(hit.scalar));
+            Vector normal = hit.normal(point);
+            ray.origin = point;
+            if (hit.objHit.type == Material.DIFFUSE) {
+                return depth > 0 ? point : null;
+            } else if (hit.objHit.type == Material.SPECULAR) {
+                double cosine = ray.direction.vdot(normal);
+                ray.direction = ray.direction.vSub(normal.sMult(2 * cosine))
+                        .norm();
+            } else {
+                double n = hit.objHit.refIndex;
+                if (normal.vdot(ray.direction) > 0) {
+                    normal = normal.sMult(-1.0);
+                    n = 1 / n;
+                }
+                n = 1 / n;
+                double cosine1 = -normal.vdot(ray.direction);
+                double cosine2 = 1.0 - n * n * (1.0 - cosine1 * cosine1);
+                if (cosine2 <= 0) {
+                    return null;
+                }
+                ray.direction = ray.direction.sMult(n)
+                        .vAdd(normal.sMult(n * cosine1 - Math.sqrt(cosine2)))
+                        .norm();
+            }
+        }
+        return null;
+    }
+
+    //Balances one range of the kd-tree, forking the halves of large ranges
+    private static final class Balance extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final PhotonMap map;
+        private final int lo, hi;
+
+        Balance(PhotonMap m, int l, int h) {
+            this.map = m;
+            this.lo = l;
+            this.hi = h;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.hi - this.lo <= 1) {
+                return;
+            }
+            int mid = this.map.split(this.lo, this.hi);
+            if (this.hi - this.lo > PARALLEL_BUILD) {
+                invokeAll(new Balance(this.map, this.lo, mid),
+                        new Balance(this.map, mid + 1, this.hi));
+            } else {
+                new Balance(this.map, this.lo, mid).compute();
+                new Balance(this.map, mid + 1, this.hi).compute();
+            }
+        }
+    }
+
+    //Put the median of the widest axis at the middle of the range
+    private int split(int lo, int hi) {
+        float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+        float[] max = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+        for (int i = lo; i < hi; i++) {
+            for (int a = 0; a < 3; a++) {
+                min[a] = Math.min(min[a], this.pos[i * 3 + a]);
+                max[a] = Math.max(max[a], this.pos[i * 3 + a]);
+            }
+        }
+        int a = 0;
+        for (int k = 1; k < 3; k++) {
+            if (max[k] - min[k] > max[a] - min[a]) {
+                a = k;
+            }
+        }
+        int mid = (lo + hi) >>> 1;
+        //Quickselect
+        int l = lo;
+        int h = hi - 1;
+        while (l < h) {
+            float pivot = this.pos[((l + h) >>> 1) * 3 + a];
+            int i = l;
+            int j = h;
+            while (i <= j) {
+                while (this.pos[i * 3 + a] < pivot) {
+                    i++;
+                }
+                while (this.pos[j * 3 + a] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    for (int k = 0; k < 3; k++) {
+                        float t = this.pos[i * 3 + k];
+                        this.pos[i * 3 + k] = this.pos[j * 3 + k];
+                        this.pos[j * 3 + k] = t;
+                    }
+                    i++;
+                    j--;
+                }
+            }
+            if (mid <= j) {
+                h = j;
+            } else if (mid >= i) {
+                l = i;
+            } else {
+                break;
+            }
+        }
+        this.axis[mid] = (byte) a;
+        return mid;
+    }
+
+    //Photons within radius of p
+    int gather(Vector p) {
+        double r = this.radius;
+        if (this.count == 0 || p.x < this.bounds[0] - r
+                || p.x > this.bounds[3] + r || p.y < this.bounds[1] - r
+                || p.y > this.bounds[4] + r || p.z < this.bounds[2] - r
+                || p.z > this.bounds[5] + r) {
+            return 0;
+        }
+        double r2 = r * r;
+        int found = 0;
+        int[] stack = new int[128];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = this.count;
+        while (top > 0) {
+            int hi = stack[--top];
+            int lo = stack[--top];
+            if (hi <= lo) {
+                continue;
+            }
+            int mid = (lo + hi) >>> 1;
+            double dx = p.x - this.pos[mid * 3];
+            double dy = p.y - this.pos[mid * 3 + 1];
+            double dz = p.z - this.pos[mid * 3 + 2];
+            if (dx * dx + dy * dy + dz * dz <= r2) {
+                found++;
+            }
+            if (hi - lo == 1) {
+                continue;
+            }
+            int a = this.axis[mid];
+            double d = a == 0 ? dx : (a == 1 ? dy : dz);
+            //Near side always, far side only if the sphere crosses the split
+            if (d < 0 || d * d <= r2) {
+                stack[top++] = lo;
+                stack[top++] = mid;
+            }
+            if (d >= 0 || d * d <= r2) {
+                stack[top++] = mid + 1;
+                stack[top++] = hi;
+            }
+        }
+        return found;
+    }
+
+    //Caustic light leaving a diffuse hit, in the units of trace
+    //trace weights the next bounce by 0.1 * color * cosine, which averages
+    //1 + normal.z / 2 over its direction sampler. The irradiance is turned
+    //into radiance as by a Lambertian surface with that same total, which
+    //matches trace for light from all around; trace's sampler favours
+    //directions near the normal, so it sees light from there brighter.
+    Vector radiance(Vector p, Vector normal, Vector color) {
+        int n = this.gather(p);
+        if (n == 0) {
+            return new Vector(0, 0, 0);
+        }
+        double irradiance = n * this.flux
+                / (RayTracer.PI * this.radius * this.radius);
+        double w = 0.1 * (1 + normal.z / 2) * irradiance / RayTracer.PI;
+        return color.sMult(w);
+    }
+
+    //Demo: the built-in room with and without a caustic map, written to
+    //caustics_off.png and caustics_on.png
+    //Arguments: [map size in MB] [spp]
+    public static void main(String[] args)
+            throws IOException, InterruptedException {
+        long mb = args.length > 0 ? Long.parseLong(args[0]) : 8;
+        int spp = args.length > 1 ? Integer.parseInt(args[1]) : RayMain.SPP;
+        Environment rm = RayTracer.render(1.6);
+        rm.build();
+
+        long t0 = System.nanoTime();
+        PhotonMap map = build(rm, mb * 1024 * 1024, RayMain.MAX_DEPTH,
+                new AtomicBoolean(false));
+        System.out.printf("%d photons in %.1f ms, gather radius %.4f%n",
+                map.count, (System.nanoTime() - t0) / 1e6, map.radius);
+
+        for (boolean on : new boolean[] { false, true }) {
+            RenderSettings set = new RenderSettings(RayMain.WIDTH,
+                    RayMain.HEIGHT, spp, RayMain.MAX_DEPTH);
+            set.causticBytes = on ? map.budget : 0;
+            rm.caustics = on ? map : null;
+            FrameBuffer fb = new FrameBuffer(set.width, set.height);
+            t0 = System.nanoTime();
+            RayTracer.renderFrame(rm, set, fb, new AtomicBoolean(false));
+            System.out.printf("caustics %-3s %8.1f ms%n", on ? "on" : "off",
+                    (System.nanoTime() - t0) / 1e6);
+            ImageIO.write(fb.toImage(), "png",
+                    new File(on ? "caustics_on.png" : "caustics_off.png"));
+        }
+    }
+}
@@ -0,0 +1,110 @@
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//Interactive preview
+//Renders the current camera through a resolution pyramid: 1/8, 1/4 and 1/2
+//of the full size at one sample per pixel, then full size, accumulating
+//passes until spp is reached. Moving the camera cancels the frame in flight
+//and starts again at the coarsest level, so interaction stays responsive and
+//the image converges once the camera stops.
+class PreviewRenderer implements Runnable {
+    private static final int COARSEST = 8;
+
+    //Receives every refined image, called from the preview thread
+    interface Listener {
+        void frame(BufferedImage img, int scale, int passes);
+    }
+
+    Environment rm;
+    RenderSettings full; //target size, spp and depth
+    Listener listener;
+    private volatile Camera camera;
+    private volatile AtomicBoolean cancel = new AtomicBoolean(false);
+    private volatile boolean stopped;
+    private final Thread thread;
+
+    PreviewRenderer(Environment env, RenderSettings set, Listener l) {
+        this.rm = env;
+        this.full = set;
+        this.camera = set.camera;
+        this.listener = l;
+        this.thread = new Thread(this, "preview");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        this.thread.start();
+    }
+
+    void stop() {
+        this.stopped = true;
+        this.cancel.set(true);
+        this.thread.interrupt();
+    }
+
+    Camera camera() {
+        return this.camera;
+    }
+
+    //Restart refinement from the new camera
+    synchronized void setCamera(Camera cam) {
+        this.camera = cam;
+        this.cancel.set(true);
+        this.notifyAll();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!this.stopped) {
+                Camera cam;
+                AtomicBoolean flag;
+                synchronized (this) {
+                    cam = this.camera;
+                    flag = new AtomicBoolean(false);
+                    this.cancel = flag;
+                }
+                if (this.refine(cam, flag)) {
+                    //Converged, sleep until the camera moves again
+                    synchronized (this) {
+                        while (this.camera == cam && !this.stopped) {
+                            this.wait();
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            //Preview closed
+        }
+    }
+
+    //Returns false if the camera moved before the frame converged
+    private boolean refine(Camera cam, AtomicBoolean flag)
+            throws InterruptedException {
+        for (int scale = COARSEST; scale > 1; scale /= 2) {
+            RenderSettings set = new RenderSettings(
+                    Math.max(1, this.full.width / scale),
+                    Math.max(1, this.full.height / scale), 1,
+                    this.full.maxDepth, cam);
+            set.integrator = this.full.integrator;
+            set.causticBytes = this.full.causticBytes;
+            FrameBuffer fb = new FrameBuffer(set.width, set.height);
+            if (!RayTracer.renderFrame(this.rm, set, fb, flag)) {
+                return false;
+            }
+            this.listener.frame(fb.toImage(), scale, 1);
+        }
+        RenderSettings set = new RenderSettings(this.full.width,
+                this.full.height, 1, this.full.maxDepth, cam);
+        set.integrator = this.full.integrator;
+        set.causticBytes = this.full.causticBytes;
+        FrameBuffer fb = new FrameBuffer(set.width, set.height);
+        while (fb.passes < this.full.spp) {
+            if (!RayTracer.renderFrame(this.rm, set, fb, flag)) {
+                return false;
+            }
+            this.listener.frame(fb.toImage(), 1, fb.passes);
+        }
+        return true;
+    }
+}
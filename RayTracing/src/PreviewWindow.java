@@ -0,0 +1,145 @@
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+
+//Interactive camera preview for scene layout
+//W/S move forward and back, A/D across, R/F up and down the image,
+//arrow keys turn, +/- change the field of view.
+//The camera is shared through RayMain.CAMERA, so a later Render uses it.
+class PreviewWindow extends JFrame {
+    private static final long serialVersionUID = 1L;
+    private static final double STEP = 0.25;
+    private static final double TURN = 0.05;
+
+    private PreviewRenderer renderer;
+    private volatile BufferedImage latest;
+    private JLabel info;
+
+    PreviewWindow(Environment rm) {
+        super("Interactive Preview");
+        this.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        final int w = RayMain.WIDTH;
+        final int h = RayMain.HEIGHT;
+
+        //Low resolution frames are stretched to the full size
+        JPanel view = new JPanel() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void paintComponent(Graphics g) {
+                BufferedImage img = PreviewWindow.this.latest;
+                if (img != null) {
+                    g.drawImage(img, 0, 0, w, h, null);
+                }
+            }
+        };
+        view.setPreferredSize(new Dimension(w, h));
+        this.add(view, BorderLayout.CENTER);
+        this.info = new JLabel(" ");
+        this.add(this.info, BorderLayout.PAGE_END);
+
+        this.renderer = new PreviewRenderer(rm,
+                RenderSettings.fromGlobals(), new PreviewRenderer.Listener() {
+                    @Override
+                    public void frame(final BufferedImage img, final int scale,
+                            final int passes) {
+                        PreviewWindow.this.latest = img;
+                        SwingUtilities.invokeLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                PreviewWindow.this.status(scale, passes);
+                                PreviewWindow.this.repaint();
+                            }
+                        });
+                    }
+                });
+
+        this.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                PreviewWindow.this.key(e.getKeyCode());
+            }
+        });
+        this.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                PreviewWindow.this.renderer.stop();
+            }
+        });
+        this.pack();
+        this.renderer.start();
+    }
+
+    private void status(int scale, int passes) {
+        Camera c = this.renderer.camera();
+        this.info.setText(String.format(
+                "1/%d res, %d spp | pos %.2f %.2f %.2f | dir %.2f %.2f %.2f"
+                        + " | fov %.2f",
+                scale, passes, c.position.x, c.position.y, c.position.z,
+                c.direction.x, c.direction.y, c.direction.z, c.fov));
+    }
+
+    private void key(int code) {
+        Camera c = this.renderer.camera();
+        Camera next;
+        switch (code) {
+            case KeyEvent.VK_W:
+                next = c.moved(0, 0, STEP);
+                break;
+            case KeyEvent.VK_S:
+                next = c.moved(0, 0, -STEP);
+                break;
+            case KeyEvent.VK_A:
+                next = c.moved(0, -STEP, 0);
+                break;
+            case KeyEvent.VK_D:
+                next = c.moved(0, STEP, 0);
+                break;
+            case KeyEvent.VK_R:
+                next = c.moved(-STEP, 0, 0);
+                break;
+            case KeyEvent.VK_F:
+                next = c.moved(STEP, 0, 0);
+                break;
+            case KeyEvent.VK_LEFT:
+                next = c.turned(0, -TURN);
+                break;
+            case KeyEvent.VK_RIGHT:
+                next = c.turned(0, TURN);
+                break;
+            case KeyEvent.VK_UP:
+                next = c.turned(-TURN, 0);
+                break;
+            case KeyEvent.VK_DOWN:
+                next = c.turned(TURN, 0);
+                break;
+            case KeyEvent.VK_EQUALS:
+            case KeyEvent.VK_PLUS:
+                next = c.withFov(c.fov - TURN);
+                break;
+            case KeyEvent.VK_MINUS:
+                next = c.withFov(c.fov + TURN);
+                break;
+            default:
+                return;
+        }
+        RayMain.CAMERA = next;
+        this.renderer.setCamera(next);
+    }
+
+    static void open() {
+        Environment rm = RayTracer.render(1.6);
+        rm.build();
+        new PreviewWindow(rm).setVisible(true);
+    }
+}
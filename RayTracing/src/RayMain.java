@@ -2,8 +2,12 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.swing.JPanel;
@@ -19,6 +23,11 @@ class RayMain {
     public static int SPP = 30;
     public static int MAX_DEPTH = 10;
     public static int THREADS = 8;
+    public static boolean STATS = false; //record per-pixel render cost
+    public static Camera CAMERA = new Camera(); //moved by the preview window
+    public static RenderSettings.Integrator INTEGRATOR =
+            RenderSettings.Integrator.PATH; //for headless renders
+    public static int CAUSTIC_MB = 0; //caustic photon map size, 0 for none
 
     public static void update() {
         SPP = Display.SPP;
@@ -131,8 +140,21 @@ enum Material {
     DIFFUSE, SPECULAR, REFRACTIVE
 }
 
+//Anything the scene holds and rays are tested against: a surface (Objects)
+//or an Instance of shared geometry
+abstract class Primitive {
+    //Record the hit in nearest if the ray hits this first
+    abstract void intersect(Ray ray, Intersection nearest,
+            RenderStats.Counter cost);
+
+    //Axis aligned box {min x, y, z, max x, y, z}, null for unbounded objects
+    double[] bounds() {
+        return null;
+    }
+}
+
 //Object superclass
-abstract class Objects {
+abstract class Objects extends Primitive {
     Vector color; //eventually replace with wavelength distributions
     double emittance;
     Material type; //surface type @Material
@@ -153,6 +175,21 @@ abstract class Objects {
     abstract double intersect(Ray ray); //object intersections (object dependent)
 
     abstract Vector vNormal(Vector vec); //surface normal
+
+    @Override
+    void intersect(Ray ray, Intersection nearest, RenderStats.Counter cost) {
+        double scalar = this.intersect(ray);
+        if (cost != null) {
+            cost.tests++;
+        }
+        double minSol = 0.001;
+        //Prevent 0's.
+        if (scalar > minSol && scalar < nearest.scalar) {
+            nearest.scalar = scalar;
+            nearest.objHit = this;
+            nearest.hitNormal = null;
+        }
+    }
 }
 
 //Spheres
@@ -207,6 +244,14 @@ class Sphere extends Objects {
         //Surface - center = radial vector
         return vec.vSub(this.center).norm();
     }
+
+    @Override
+    double[] bounds() {
+        return new double[] { this.center.x - this.radius,
+                this.center.y - this.radius, this.center.z - this.radius,
+                this.center.x + this.radius, this.center.y + this.radius,
+                this.center.z + this.radius };
+    }
 }
 
 //Plane
@@ -245,6 +290,7 @@ class Plane extends Objects {
 class Intersection {
     double scalar;
     Objects objHit;
+    Vector hitNormal; //world normal for hits inside instances, else null
 
     //Initially, define ray to have no interactions
     Intersection() {
@@ -261,38 +307,123 @@ class Intersection {
     boolean miss() {
         return this.objHit == null;
     }
+
+    //Surface normal at the hit point
+    Vector normal(Vector point) {
+        if (this.hitNormal != null) {
+            return this.hitNormal;
+        }
+        return this.objHit.vNormal(point);
+    }
 }
 
 //Build environment of spheres and planes
 class Environment {
-    Set<Objects> Room;
+    Set<Primitive> Room;
+    Bvh bvh; //bounded objects, built by build()
+    List<Primitive> unbounded; //planes, always tested
+    PhotonMap caustics; //caustic photons, null when off
 
     Environment() {
-        this.Room = new HashSet<Objects>();
+        this.Room = new HashSet<Primitive>();
     }
 
-    void add(Objects obj) {
+    void add(Primitive obj) {
         this.Room.add(obj);
+        this.bvh = null;
+        this.caustics = null;
+    }
+
+    //Build the acceleration structure, must be redone after adding objects
+    void build() {
+        List<Primitive> bounded = new ArrayList<Primitive>();
+        List<Primitive> rest = new ArrayList<Primitive>();
+        for (Primitive obj : this.Room) {
+            if (obj.bounds() != null) {
+                bounded.add(obj);
+            } else {
+                rest.add(obj);
+            }
+        }
+        this.unbounded = rest;
+        this.bvh = new Bvh(bounded);
+    }
+
+    //Copy of this environment with instances moved to new transforms
+    //poses is keyed by the instances as first added to the scene. With refit
+    //the hierarchy is refit above the moved instances, otherwise rebuilt.
+    //This environment is left untouched and can still be traced meanwhile.
+    Environment posed(Map<Instance, Transform> poses, boolean refit) {
+        if (this.bvh == null) {
+            this.build();
+        }
+        Map<Primitive, Primitive> swap =
+                new IdentityHashMap<Primitive, Primitive>();
+        Environment next = new Environment();
+        for (Primitive obj : this.Room) {
+            Primitive now = obj;
+            if (obj instanceof Instance) {
+                Instance inst = (Instance) obj;
+                Transform t = poses.get(inst.original);
+                if (t != null) {
+                    now = inst.posed(t);
+                    swap.put(obj, now);
+                }
+            }
+            next.Room.add(now);
+        }
+        if (!refit) {
+            next.build();
+            return next;
+        }
+        next.unbounded = new ArrayList<Primitive>();
+        for (Primitive obj : this.unbounded) {
+            Primitive now = swap.get(obj);
+            next.unbounded.add(now != null ? now : obj);
+        }
+        next.bvh = this.bvh.refitted(swap);
+        return next;
+    }
+
+    //Box around everything, null if anything is unbounded or nothing is added
+    double[] bounds() {
+        if (this.bvh == null) {
+            this.build();
+        }
+        if (!this.unbounded.isEmpty()) {
+            return null;
+        }
+        return this.bvh.bounds();
     }
 
     Intersection intersecting(Ray ray) {
+        return this.intersecting(ray, null);
+    }
+
+    //cost counts the intersection tests when render stats are enabled
+    Intersection intersecting(Ray ray, RenderStats.Counter cost) {
         Intersection nearest = new Intersection();
-        //When testing for intersection, a ray must test all possible objects.
-        //Later improvements can be made that take spatial hierarchies into account that limit the number of objects to check.
-        Iterator<Objects> i = this.Room.iterator();
+        this.intersecting(ray, nearest, cost);
+        return nearest;
+    }
+
+    //Narrow nearest down to the closest hit in this environment
+    void intersecting(Ray ray, Intersection nearest,
+            RenderStats.Counter cost) {
+        if (this.bvh != null) {
+            this.bvh.intersect(ray, nearest, cost);
+            for (Primitive obj : this.unbounded) {
+                obj.intersect(ray, nearest, cost);
+            }
+            return;
+        }
+        //Without a built hierarchy, a ray must test all possible objects.
+        Iterator<Primitive> i = this.Room.iterator();
         while (i.hasNext()) {
-            Objects test = i.next();
-            double scalar = test.intersect(ray);
-            double minSol = 0.001;
+            Primitive test = i.next();
             //Find the nearest intersection
-            //Prevent 0's.
-            if (scalar > minSol && scalar < nearest.scalar) {
-                nearest.scalar = scalar;
-                nearest.objHit = test;
-            }
-
+            test.intersect(ray, nearest, cost);
         }
-        return nearest;
     }
 }
 
@@ -307,7 +438,7 @@ class Halton {
         while (i > 0) {
             this.value += f * (i % base);
             i /= base;
-            f = f * base;
+            f = f * this.inv_base;
         }
     }
 
@@ -1,7 +1,16 @@
 import java.awt.Color;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.SwingUtilities;
 
@@ -21,6 +30,21 @@ public final class RayTracer {
     public static final double PI = 3.14159265;
     public static final int AMBIENT = 20;
 
+    //Render cost of the last frame, only collected when RayMain.STATS is set
+    //or the frame buffer came with its own RenderStats
+    static RenderStats stats;
+
+    //Worker pool shared by every render, one daemon thread per core
+    static final ExecutorService WORKERS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ray-worker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
     private static double rndDouble() {
         return ThreadLocalRandom.current().nextDouble();
 
@@ -60,16 +84,6 @@ public final class RayTracer {
 
     }
 
-    //Calculations converting from the pixelized camera plane to the virtual space.
-    private static Vector camera(double x, double y) {
-        double w = WIDTH;
-        double h = HEIGHT;
-        double viewX = PI / 4;
-        double viewY = (h / w) * viewX;
-        return new Vector(((2 * x - w) / w) * Math.tan(viewX),
-                ((2 * y - h) / h) * Math.tan(viewY), -1.0);
-    }
-
     //Random sampling method for diffuse interactions
     private static Vector hemisphere(double u1, double u2) {
         double r = rndDouble();
@@ -78,15 +92,23 @@ public final class RayTracer {
     }
 
     //Recursive ray tracing function
-    private static Vector trace(Ray ray, Environment rm, int depth, Vector clr,
-            Halton h1, Halton h2) {
+    //cost is the calling thread's stats counter, or null when stats are off
+    //state is a PhotonMap path state, so light the caustic map already
+    //delivered at an earlier diffuse hit is not counted twice
+    private static Vector trace(Ray ray, Environment rm, int depth,
+            int maxDepth, Vector clr, Halton h1, Halton h2,
+            RenderStats.Counter cost, int state) {
         //Check for max ray depth
-        if (depth > RayMain.MAX_DEPTH) {
+        if (depth > maxDepth) {
             return new Vector(0, 0, 0);
         }
+        if (cost != null) {
+            cost.rays++;
+            cost.pathDepth = Math.max(cost.pathDepth, depth);
+        }
 
         //Check for ray intersection
-        Intersection intersect = rm.intersecting(ray);
+        Intersection intersect = rm.intersecting(ray, cost);
         if (intersect.miss()) {
             return new Vector(0, 0, 0);
         }
@@ -94,15 +116,18 @@ public final class RayTracer {
         //Measure ray interaction
         Vector intPoint = (ray.origin)
                 .vAdd(ray.direction.sMult(intersect.scalar));
-        Vector normal = intersect.objHit.vNormal(intPoint);
+        Vector normal = intersect.normal(intPoint);
 
         //Next ray starts at interaction point
         ray.origin = intPoint;
 
         //Color
-        clr = clr.vAdd((new Vector(intersect.objHit.emittance,
-                intersect.objHit.emittance, intersect.objHit.emittance))
-                        .sMult(2));
+        if (PhotonMap.emits(rm.caustics, state, intersect.objHit)) {
+            clr = clr.vAdd((new Vector(intersect.objHit.emittance,
+                    intersect.objHit.emittance, intersect.objHit.emittance))
+                            .sMult(2));
+        }
+        int next = PhotonMap.next(rm.caustics, state, intersect.objHit.type);
 
         //Diffuse
         //Random reflection
@@ -117,7 +142,14 @@ public final class RayTracer {
             Vector tmp = new Vector(0, 0, 0);
 
             //recursion on to next ray
-            tmp = trace(ray, rm, depth + 1, tmp, h1, h2);
+            tmp = trace(ray, rm, depth + 1, maxDepth, tmp, h1, h2, cost,
+                    next);
+
+            //Caustic light from the photon map
+            if (rm.caustics != null) {
+                clr = clr.vAdd(rm.caustics.radiance(intPoint, normal,
+                        intersect.objHit.color));
+            }
 
             //sum together light interactions
             clr.x += (cosine) * (tmp.x) * (intersect.objHit.color.x) * 0.1;
@@ -135,7 +167,8 @@ public final class RayTracer {
 
             //Ray light contribution is cumulative
             Vector tmp = new Vector(0, 0, 0);
-            tmp = trace(ray, rm, depth + 1, tmp, h1, h2);
+            tmp = trace(ray, rm, depth + 1, maxDepth, tmp, h1, h2, cost,
+                    next);
             clr = clr.vAdd(tmp);
         }
         //Refractive
@@ -157,7 +190,8 @@ public final class RayTracer {
 
                 //Ray light contribution is cumulative
                 Vector tmp = new Vector(0, 0, 0);
-                tmp = trace(ray, rm, depth + 1, tmp, h1, h2);
+                tmp = trace(ray, rm, depth + 1, maxDepth, tmp, h1, h2, cost,
+                        next);
                 clr = clr.vAdd(tmp);
             } else {
                 //total refraction, not like returned to ray
@@ -226,9 +260,34 @@ public final class RayTracer {
         return rm;
     }
 
+    //Trace one jittered camera sample through pixel (x, y)
+    private static Vector sample(Environment rm, Camera cam, double x,
+            double y, int w, int h, int maxDepth, Halton h1, Halton h2,
+            RenderStats.Counter cost) {
+        //initial color set to zero
+        Vector color = new Vector(0, 0, 0);
+        //generate camera ray to pizel(x,y)
+        //Monte carlo pixel sampling method
+        Ray ray = cam.ray(x, y, w, h, rndDouble() / 1000, rndDouble() / 1000);
+
+        //Begin tracing
+        color = trace(ray, rm, 0, maxDepth, color, h1, h2, cost,
+                PhotonMap.DIRECT);
+        if (cost != null) {
+            cost.endPath();
+        }
+        return color;
+    }
+
     public static void raySampling(int x1, int x2, int height, int samples,
             ImageWindow img, Environment rm) {
         SimpleWriter out = new SimpleWriter1L();
+        //Per-thread cost counter, flushed into the shared stats once per pixel
+        RenderStats.Counter cost = null;
+        if (stats != null) {
+            cost = new RenderStats.Counter();
+        }
+        Camera cam = RayMain.CAMERA;
         //Initialize Halton Sequences
         Halton h1, h2;
         h1 = new Halton(0, 2);
@@ -242,28 +301,25 @@ public final class RayTracer {
         for (int i = x1; i < x2; i++) {
             for (int j = 0; j < HEIGHT; j++) {
                 out.println("Generating pix [" + i + "," + j + "]");
+                long start = 0;
+                if (cost != null) {
+                    start = System.nanoTime();
+                }
                 pix[i][j] = new Vector(0, 0, 0);
                 for (int s = 0; s < samples; s++) {
-                    //initial color set to zero
-                    Vector color = new Vector(0, 0, 0);
-                    //generate camera ray to pizel(i,j)
-                    Vector cam = camera(i, j);
-                    //Monte carlo pixel sampling method
-                    cam.x = cam.x + rndDouble() / 1000;
-                    cam.y = cam.y + rndDouble() / 1000;
-
-                    //Define initial camera ray
-                    Ray ray = new Ray(new Vector(0, 0, 0),
-                            (cam.vSub(new Vector(0, 0, 0))).norm());
-
-                    //Begin tracing
-                    color = trace(ray, rm, 0, color, h1, h2);
+                    Vector color = sample(rm, cam, i, j, WIDTH, HEIGHT,
+                            RayMain.MAX_DEPTH, h1, h2, cost);
 
                     //Add color samples
                     pix[i][j].x += color.x;
                     pix[i][j].y += color.y;
                     pix[i][j].z += color.z;
                 }
+                //Image coordinates are swapped, matching toPixel
+                if (cost != null) {
+                    stats.record(j, i, System.nanoTime() - start, samples,
+                            cost);
+                }
                 //Draw picture pixel by pixel
                 Vector vec = pix[i][j];
                 toPixel(vec, img, i, j);
@@ -295,6 +351,101 @@ public final class RayTracer {
         }
     }
 
+    //Run tasks on the worker pool and wait for all of them
+    //The first failure is rethrown, so a frame with pixels a task never
+    //traced is not reported as complete
+    static void runAll(List<Callable<Void>> tasks)
+            throws InterruptedException {
+        for (Future<Void> f : WORKERS.invokeAll(tasks)) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+
+    //Headless progressive render, one sample per pixel per pass
+    //Rows are split into tasks on the shared worker pool, so the frame buffer
+    //can be read for partial results while passes are running
+    //Returns false if cancel was set before all passes completed
+    static boolean renderFrame(final Environment rm, final RenderSettings set,
+            final FrameBuffer fb, final AtomicBoolean cancel)
+            throws InterruptedException {
+        //Photon pre-pass, kept while the scene, budget and depth stay the same
+        if (!PhotonMap.prepare(rm, set, cancel)) {
+            return false;
+        }
+        if (fb.stats == null && RayMain.STATS) {
+            fb.stats = new RenderStats(fb.width, fb.height);
+        }
+        if (fb.stats != null) {
+            stats = fb.stats;
+        }
+        if (set.integrator == RenderSettings.Integrator.WAVEFRONT) {
+            return WavefrontTracer.renderFrame(rm, set, fb, cancel);
+        }
+        //One task per SharedFrame tile, so each tile keeps a single writer
+        final int rowsPerTask = SharedFrame.TILE_ROWS;
+        for (int pass = 0; pass < set.spp; pass++) {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int r = 0; r < fb.height; r += rowsPerTask) {
+                final int r1 = r;
+                final int r2 = Math.min(fb.height, r + rowsPerTask);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        //Task's own counter, its rows have no other writer
+                        RenderStats.Counter cost = null;
+                        if (fb.stats != null) {
+                            cost = new RenderStats.Counter();
+                        }
+                        for (int y = r1; y < r2 && !cancel.get(); y++) {
+                            //Fresh sequences per row at a random offset, so
+                            //passes decorrelate and Halton stays far from
+                            //the end of its range. Both share a base, as in
+                            //raySampling.
+                            int start = ThreadLocalRandom.current()
+                                    .nextInt(1 << 12);
+                            Halton h1 = new Halton(start, 2);
+                            Halton h2 = new Halton(start, 2);
+                            for (int x = 0; x < fb.width; x++) {
+                                long t0 = 0;
+                                if (cost != null) {
+                                    t0 = System.nanoTime();
+                                }
+                                //Rows sweep the camera's x axis, as in toPixel
+                                fb.add(x, y, sample(rm, set.camera, y, x,
+                                        fb.height, fb.width, set.maxDepth, h1,
+                                        h2, cost));
+                                if (cost != null) {
+                                    fb.stats.record(x, y,
+                                            System.nanoTime() - t0, 1,
+                                            cost);
+                                }
+                            }
+                        }
+                        fb.publish(r1, r2);
+                        return null;
+                    }
+                });
+            }
+            runAll(tasks);
+            if (cancel.get()) {
+                return false;
+            }
+            fb.endPass();
+        }
+        return true;
+    }
+
     //Get starting values from main class
     public static void update() {
         WIDTH = RayMain.WIDTH;
@@ -312,21 +463,40 @@ public final class RayTracer {
 
         //Create Objects Environment
         Environment rm = render(1.6);
+        rm.build();
+        if (RayMain.CAUSTIC_MB > 0) {
+            rm.caustics = PhotonMap.build(rm,
+                    RayMain.CAUSTIC_MB * 1024L * 1024L, MAX_DEPTH,
+                    new AtomicBoolean(false));
+        }
+
+        //Optional render cost diagnostics
+        //raySampling draws column i of WIDTH as image row i (see toPixel),
+        //so the stats image is HEIGHT wide and WIDTH tall
+        stats = null;
+        if (RayMain.STATS) {
+            stats = new RenderStats(HEIGHT, WIDTH);
+        }
 
         //Start Clock
         Instant t1 = Instant.now();
 
-        //Split Ray Tracing across Multiple Threads
-        Thread[] threads = new Thread[THREADS];
+        //Split Ray Tracing across the shared worker pool
+        //Bands must not overlap: every pixel has one owner, which is what
+        //lets RenderStats.record overwrite its slot without locking
+        List<Future<?>> bands = new ArrayList<Future<?>>();
         for (int i = 0; i < THREADS; i++) {
-            threads[i] = new Thread(new raySplit(i * HEIGHT / THREADS,
-                    (HEIGHT / THREADS) + THREADS, WIDTH, SPP, img, rm));
+            int x1 = i * WIDTH / THREADS;
+            int x2 = (i + 1) * WIDTH / THREADS;
+            bands.add(WORKERS.submit(new raySplit(x1, x2 - x1, WIDTH, SPP,
+                    img, rm)));
         }
-        for (int i = 0; i < THREADS; i++) {
-            threads[i].start();
-        }
-        for (int i = 0; i < THREADS; i++) {
-            threads[i].join();
+        for (Future<?> band : bands) {
+            try {
+                band.get();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
         }
 
         //Stop Clock
@@ -338,6 +508,9 @@ public final class RayTracer {
         nano = nano / (Math.pow(10, 9));
 
         out.println("Time Elapsed " + nano);
+        if (stats != null) {
+            out.println("Traced Time " + stats.totalNanos() / Math.pow(10, 9));
+        }
         out.println("Success");
         out.close();
     }
@@ -0,0 +1,83 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.imageio.ImageIO;
+
+//A scene + settings request queued on the RenderService
+//Higher priority runs first, equal priorities run in submission order
+class RenderJob implements Comparable<RenderJob> {
+    enum Status {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    long id;
+    String scene;
+    Environment rm; //parsed scene, null when served from the cache
+    RenderSettings settings;
+    int priority;
+    String key; //result cache key
+    volatile Status status;
+    volatile FrameBuffer frame; //progressive result while running
+    volatile byte[] png; //final image
+    volatile String error;
+    AtomicBoolean cancel = new AtomicBoolean(false);
+    CountDownLatch finished = new CountDownLatch(1);
+
+    RenderJob(long id0, String scn, RenderSettings set, int prio) {
+        this.id = id0;
+        this.scene = scn;
+        this.settings = set;
+        this.priority = prio;
+        this.key = ResultCache.key(scn, set);
+        this.status = Status.QUEUED;
+    }
+
+    @Override
+    public int compareTo(RenderJob o) {
+        if (this.priority != o.priority) {
+            return Integer.compare(o.priority, this.priority);
+        }
+        return Long.compare(this.id, o.id);
+    }
+
+    boolean done() {
+        return this.finished.getCount() == 0;
+    }
+
+    void finish(Status s) {
+        this.status = s;
+        this.finished.countDown();
+    }
+
+    //Completed passes, out of settings.spp
+    int passes() {
+        if (this.status == Status.DONE) {
+            return this.settings.spp;
+        }
+        FrameBuffer fb = this.frame;
+        return fb == null ? 0 : fb.passes;
+    }
+
+    //Final image if finished, otherwise the progressive result so far
+    //Returns null while the job is still queued
+    byte[] image() throws IOException {
+        byte[] done = this.png;
+        if (done != null) {
+            return done;
+        }
+        FrameBuffer fb = this.frame;
+        if (fb == null) {
+            return null;
+        }
+        return encode(fb.toImage());
+    }
+
+    static byte[] encode(BufferedImage img) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(img, "png", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,197 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+//Localhost HTTP front end for RenderService
+//  POST /render?width=&height=&spp=&depth=&priority=&integrator=&caustics=
+//       body: scene text -> job id; settings default to the RayMain values,
+//       caustics is the photon map size in MB, up to MAX_CAUSTIC_MB
+//  GET  /status?id=  -> "<status> <passes>/<spp>"
+//  GET  /image?id=   -> PNG, progressive until the job is done
+//  POST /cancel?id=
+class RenderServer {
+    //Largest frame accepted, a FrameBuffer takes 28 bytes per pixel
+    static final long MAX_PIXELS = 4096L * 4096L;
+    //Largest photon map accepted, in MB
+    static final int MAX_CAUSTIC_MB = 256;
+
+    HttpServer http;
+    RenderService service;
+
+    RenderServer(RenderService svc, int port) throws IOException {
+        this.service = svc;
+        this.http = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                0);
+        this.http.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                try {
+                    RenderServer.this.handle(ex);
+                } catch (IllegalArgumentException e) {
+                    reply(ex, 400, e.getMessage());
+                } finally {
+                    ex.close();
+                }
+            }
+        });
+    }
+
+    void start() {
+        this.http.start();
+    }
+
+    void stop() {
+        this.http.stop(0);
+    }
+
+    private static Map<String, String> query(HttpExchange ex) {
+        Map<String, String> q = new HashMap<String, String>();
+        String raw = ex.getRequestURI().getRawQuery();
+        if (raw != null) {
+            for (String pair : raw.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    q.put(pair.substring(0, eq), pair.substring(eq + 1));
+                }
+            }
+        }
+        return q;
+    }
+
+    private static int param(Map<String, String> q, String name, int def) {
+        String v = q.get(name);
+        if (v == null) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(v);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad " + name + ": " + v);
+        }
+    }
+
+    private static void reply(HttpExchange ex, int code, String text)
+            throws IOException {
+        send(ex, code, "text/plain; charset=utf-8",
+                (text + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange ex, int code, String type,
+            byte[] body) throws IOException {
+        ex.getResponseHeaders().set("Content-Type", type);
+        ex.sendResponseHeaders(code, body.length);
+        OutputStream out = ex.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static String body(HttpExchange ex) throws IOException {
+        InputStream in = ex.getRequestBody();
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        int n;
+        while ((n = in.read(chunk)) > 0) {
+            buf.write(chunk, 0, n);
+        }
+        return new String(buf.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        String path = ex.getRequestURI().getPath();
+        String method = ex.getRequestMethod();
+        Map<String, String> q = query(ex);
+
+        if (path.equals("/render") && method.equals("POST")) {
+            RenderSettings def = RenderSettings.fromGlobals();
+            RenderSettings set = new RenderSettings(
+                    param(q, "width", def.width),
+                    param(q, "height", def.height), param(q, "spp", def.spp),
+                    param(q, "depth", def.maxDepth));
+            set.integrator = def.integrator;
+            set.causticBytes = param(q, "caustics", RayMain.CAUSTIC_MB)
+                    * 1024L * 1024L;
+            if (q.containsKey("integrator")) {
+                try {
+                    set.integrator = RenderSettings.Integrator.valueOf(
+                            q.get("integrator").toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(
+                            "Bad integrator: " + q.get("integrator"));
+                }
+            }
+            if (set.width < 1 || set.height < 1 || set.spp < 1
+                    || set.causticBytes < 0) {
+                throw new IllegalArgumentException("Bad settings " + set);
+            }
+            if ((long) set.width * set.height > MAX_PIXELS) {
+                throw new IllegalArgumentException("Frame larger than "
+                        + MAX_PIXELS + " pixels");
+            }
+            if (set.causticBytes > MAX_CAUSTIC_MB * 1024L * 1024L) {
+                throw new IllegalArgumentException("Photon map larger than "
+                        + MAX_CAUSTIC_MB + " MB");
+            }
+            RenderJob job;
+            try {
+                job = this.service.submit(body(ex), set,
+                        param(q, "priority", 0));
+            } catch (IllegalStateException e) {
+                reply(ex, 503, e.getMessage());
+                return;
+            }
+            reply(ex, job.done() ? 200 : 202, String.valueOf(job.id));
+            return;
+        }
+
+        RenderJob job = this.service.job(param(q, "id", -1));
+        if (job == null) {
+            reply(ex, 404, "No such job");
+        } else if (path.equals("/status")) {
+            String status = job.status + " " + job.passes() + "/"
+                    + job.settings.spp;
+            if (job.error != null) {
+                status += " " + job.error;
+            }
+            reply(ex, 200, status);
+        } else if (path.equals("/image")) {
+            byte[] png = job.image();
+            if (png == null) {
+                reply(ex, 409, "Job not started");
+            } else {
+                send(ex, 200, "image/png", png);
+            }
+        } else if (path.equals("/cancel") && method.equals("POST")) {
+            reply(ex, 200, String.valueOf(this.service.cancel(job.id)));
+        } else {
+            reply(ex, 404, "Unknown request");
+        }
+    }
+
+    //Arguments: [port] [cache directory] [cache size in MB] [live file]
+    //The running job is published to the live file for LiveViewer
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8470;
+        File dir = new File(args.length > 1 ? args[1] : "render_cache");
+        long mb = args.length > 2 ? Long.parseLong(args[2]) : 256;
+        RenderService svc = new RenderService(64, dir, mb * 1024 * 1024);
+        if (args.length > 3) {
+            svc.live = new File(args[3]);
+        }
+        RenderServer server = new RenderServer(svc, port);
+        server.start();
+        System.out.println("Render service on http://localhost:" + port);
+    }
+}
@@ -0,0 +1,153 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+
+//Embeddable render service
+//Jobs wait in a bounded priority queue and are rendered one at a time, each
+//frame spread over RayTracer's shared worker pool. Finished images go into
+//a ResultCache, so a repeated scene + settings request returns immediately.
+class RenderService {
+    private static final int KEEP_JOBS = 256; //finished jobs kept for polling
+
+    int capacity;
+    ResultCache cache;
+    File live; //running job is published here as a SharedFrame, or null
+    private final PriorityBlockingQueue<RenderJob> queue =
+            new PriorityBlockingQueue<RenderJob>();
+    private final Map<String, RenderJob> active =
+            new HashMap<String, RenderJob>();
+    private final Map<Long, RenderJob> jobs =
+            new LinkedHashMap<Long, RenderJob>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, RenderJob> e) {
+            return this.size() > KEEP_JOBS && e.getValue().done();
+        }
+    };
+    private long nextId = 1;
+    private final Thread dispatcher;
+
+    RenderService(int cap, File cacheDir, long cacheBytes) throws IOException {
+        this.capacity = cap;
+        this.cache = new ResultCache(cacheDir, cacheBytes);
+        this.dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                RenderService.this.dispatch();
+            }
+        }, "render-service");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    //Queue a render, or return the cached or already running equivalent
+    //Throws IllegalStateException if the queue is full and
+    //IllegalArgumentException if the scene does not parse
+    synchronized RenderJob submit(String scene, RenderSettings set,
+            int priority) {
+        RenderJob job = new RenderJob(this.nextId, scene, set, priority);
+        RenderJob same = this.active.get(job.key);
+        if (same != null) {
+            return same;
+        }
+        byte[] png = this.cache.get(job.key);
+        if (png == null && this.queue.size() >= this.capacity) {
+            throw new IllegalStateException("Render queue is full");
+        }
+        if (png == null) {
+            job.rm = SceneFile.parse(scene);
+        }
+        this.nextId++;
+        this.jobs.put(job.id, job);
+        if (png != null) {
+            job.png = png;
+            job.finish(RenderJob.Status.DONE);
+            return job;
+        }
+        this.active.put(job.key, job);
+        this.queue.add(job);
+        return job;
+    }
+
+    synchronized RenderJob job(long id) {
+        return this.jobs.get(id);
+    }
+
+    //Queued jobs are dropped, a running one stops after its current pass
+    //Either way its key is freed at once, so a new request for the same
+    //image starts a fresh job instead of joining the cancelled one
+    synchronized boolean cancel(long id) {
+        RenderJob job = this.jobs.get(id);
+        if (job == null || job.done()) {
+            return false;
+        }
+        job.cancel.set(true);
+        this.active.remove(job.key, job);
+        if (this.queue.remove(job)) {
+            job.finish(RenderJob.Status.CANCELLED);
+        }
+        return true;
+    }
+
+    void shutdown() {
+        this.dispatcher.interrupt();
+    }
+
+    private void dispatch() {
+        try {
+            while (true) {
+                RenderJob job = this.queue.take();
+                try {
+                    this.run(job);
+                } catch (RuntimeException | Error e) {
+                    //Fail this job only, the dispatcher serves the rest
+                    e.printStackTrace();
+                    job.error = e.toString();
+                    job.frame = null;
+                    job.finish(RenderJob.Status.FAILED);
+                }
+                synchronized (this) {
+                    //The key may belong to a newer job by now
+                    this.active.remove(job.key, job);
+                }
+            }
+        } catch (InterruptedException e) {
+            //Service shut down
+        }
+    }
+
+    private void run(RenderJob job) throws InterruptedException {
+        job.status = RenderJob.Status.RUNNING;
+        try {
+            job.rm.build();
+            job.frame = new FrameBuffer(job.settings.width,
+                    job.settings.height);
+            if (this.live != null) {
+                try {
+                    job.frame.shared = SharedFrame.create(this.live,
+                            job.frame, job.settings.spp);
+                } catch (IOException e) {
+                    //Render anyway, just not watchable
+                    e.printStackTrace();
+                }
+            }
+            if (!RayTracer.renderFrame(job.rm, job.settings, job.frame,
+                    job.cancel)) {
+                job.finish(RenderJob.Status.CANCELLED);
+                return;
+            }
+            job.png = RenderJob.encode(job.frame.toImage());
+            job.frame = null;
+            this.cache.put(job.key, job.png);
+            job.finish(RenderJob.Status.DONE);
+        } catch (IOException e) {
+            job.error = e.getMessage();
+            job.finish(job.png != null ? RenderJob.Status.DONE
+                    : RenderJob.Status.FAILED);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+//Settings for a headless render
+class RenderSettings {
+    //PATH is the recursive RayTracer.trace, WAVEFRONT the batched
+    //WavefrontTracer
+    enum Integrator {
+        PATH, WAVEFRONT
+    }
+
+    int width, height;
+    int spp; //samples per pixel
+    int maxDepth;
+    Camera camera;
+    Integrator integrator = Integrator.PATH;
+    long causticBytes; //photon map budget, 0 renders without one
+
+    RenderSettings(int w, int h, int samples, int depth) {
+        this(w, h, samples, depth, new Camera());
+    }
+
+    RenderSettings(int w, int h, int samples, int depth, Camera cam) {
+        this.width = w;
+        this.height = h;
+        this.spp = samples;
+        this.maxDepth = depth;
+        this.camera = cam;
+    }
+
+    //Current values from the main class
+    static RenderSettings fromGlobals() {
+        RenderSettings set = new RenderSettings(RayMain.WIDTH, RayMain.HEIGHT,
+                RayMain.SPP, RayMain.MAX_DEPTH, RayMain.CAMERA);
+        set.integrator = RayMain.INTEGRATOR;
+        set.causticBytes = RayMain.CAUSTIC_MB * 1024L * 1024L;
+        return set;
+    }
+
+    //Canonical form, part of the result cache key
+    @Override
+    public String toString() {
+        return "width=" + this.width + ";height=" + this.height + ";spp="
+                + this.spp + ";depth=" + this.maxDepth + ";" + this.camera
+                + ";integrator=" + this.integrator + ";caustics="
+                + this.causticBytes;
+    }
+}
@@ -0,0 +1,148 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.imageio.ImageIO;
+
+//Per-pixel render cost diagnostics
+//Records time, rays traced, intersection tests and path depth for every pixel
+//RayTracer.main hands every pixel to exactly one band, and renderFrame to
+//one row task per pass with the passes run one after another, so a pixel's
+//slot only ever has one writer at a time; the arrays need no locking as
+//long as bands and row tasks never overlap
+class RenderStats {
+    int width, height;
+    long[] nanos; //time spent on the pixel
+    long[] rays; //rays traced for the pixel (every bounce counts)
+    long[] tests; //object intersection tests
+    long[] depth; //sum of path depths over all samples
+    int[] samples;
+
+    RenderStats(int w, int h) {
+        this.width = w;
+        this.height = h;
+        this.nanos = new long[w * h];
+        this.rays = new long[w * h];
+        this.tests = new long[w * h];
+        this.depth = new long[w * h];
+        this.samples = new int[w * h];
+    }
+
+    //Thread-local tally for the pixel currently being traced
+    //Each render thread keeps its own, so counting never touches shared memory
+    static final class Counter {
+        long rays, tests, depthSum;
+        int pathDepth;
+
+        //Called after every sample, keeps the deepest bounce of the finished path
+        void endPath() {
+            this.depthSum += this.pathDepth;
+            this.pathDepth = 0;
+        }
+
+        void reset() {
+            this.rays = 0;
+            this.tests = 0;
+            this.depthSum = 0;
+            this.pathDepth = 0;
+        }
+    }
+
+    //Add a thread's counter to the pixel (x, y) of the output image
+    //Progressive renders call this once per pass, so the totals build up
+    void record(int x, int y, long ns, int spp, Counter c) {
+        int p = y * this.width + x;
+        this.nanos[p] += ns;
+        this.rays[p] += c.rays;
+        this.tests[p] += c.tests;
+        this.depth[p] += c.depthSum;
+        this.samples[p] += spp;
+        c.reset();
+    }
+
+    double avgDepth(int p) {
+        if (this.samples[p] == 0) {
+            return 0;
+        }
+        return (double) this.depth[p] / this.samples[p];
+    }
+
+    long totalNanos() {
+        long sum = 0;
+        for (long ns : this.nanos) {
+            sum += ns;
+        }
+        return sum;
+    }
+
+    //Blue (cheap) to red (expensive) color ramp
+    static int falseColor(double t) {
+        if (t < 0) {
+            t = 0;
+        } else if (t > 1) {
+            t = 1;
+        }
+        double r = Math.min(1, Math.max(0, 4 * t - 2));
+        double g = Math.min(1, Math.max(0, 2 - Math.abs(4 * t - 2)));
+        double b = Math.min(1, Math.max(0, 2 - 4 * t));
+        return ((int) (r * 255) << 16) | ((int) (g * 255) << 8)
+                | (int) (b * 255);
+    }
+
+    //Scale values against the most expensive pixel of the frame
+    BufferedImage heatmap(double[] values) {
+        double max = 0;
+        for (double v : values) {
+            max = Math.max(max, v);
+        }
+        BufferedImage img = new BufferedImage(this.width, this.height,
+                BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < this.height; y++) {
+            for (int x = 0; x < this.width; x++) {
+                double v = values[y * this.width + x];
+                img.setRGB(x, y, falseColor(max > 0 ? v / max : 0));
+            }
+        }
+        return img;
+    }
+
+    private static double[] toDouble(long[] values) {
+        double[] d = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            d[i] = values[i];
+        }
+        return d;
+    }
+
+    //Writes <prefix>_time.png, _rays.png, _tests.png, _depth.png and <prefix>.csv
+    void save(String prefix) throws IOException {
+        double[] avg = new double[this.width * this.height];
+        for (int p = 0; p < avg.length; p++) {
+            avg[p] = this.avgDepth(p);
+        }
+        ImageIO.write(this.heatmap(toDouble(this.nanos)), "png",
+                new File(prefix + "_time.png"));
+        ImageIO.write(this.heatmap(toDouble(this.rays)), "png",
+                new File(prefix + "_rays.png"));
+        ImageIO.write(this.heatmap(toDouble(this.tests)), "png",
+                new File(prefix + "_tests.png"));
+        ImageIO.write(this.heatmap(avg), "png",
+                new File(prefix + "_depth.png"));
+
+        PrintWriter csv = new PrintWriter(new File(prefix + ".csv"), "UTF-8");
+        try {
+            csv.println("x,y,nanos,rays,tests,avg_depth");
+            for (int y = 0; y < this.height; y++) {
+                for (int x = 0; x < this.width; x++) {
+                    int p = y * this.width + x;
+                    csv.println(x + "," + y + "," + this.nanos[p] + ","
+                            + this.rays[p] + "," + this.tests[p] + ","
+                            + avg[p]);
+                }
+            }
+        } finally {
+            csv.close();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//Disk cache of finished renders, content addressed by scene and settings
+//Entries are <sha-256>.png files; the least recently used ones are deleted
+//once the directory grows past maxBytes
+class ResultCache {
+    File dir;
+    long maxBytes;
+    long size;
+    //key -> file size, in access order (oldest first)
+    private final LinkedHashMap<String, Long> index =
+            new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    ResultCache(File d, long max) throws IOException {
+        this.dir = d;
+        this.maxBytes = max;
+        if (!d.isDirectory() && !d.mkdirs()) {
+            throw new IOException("Cannot create cache directory " + d);
+        }
+        //Rebuild the LRU order from modification times of earlier runs
+        File[] files = d.listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return Long.compare(a.lastModified(), b.lastModified());
+                }
+            });
+            for (File f : files) {
+                String name = f.getName();
+                if (name.endsWith(".png")) {
+                    this.index.put(name.substring(0, name.length() - 4),
+                            f.length());
+                    this.size += f.length();
+                }
+            }
+        }
+    }
+
+    static String key(String scene, RenderSettings set) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update((scene == null ? "" : scene)
+                    .getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(set.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private File file(String key) {
+        return new File(this.dir, key + ".png");
+    }
+
+    //Cached PNG bytes, or null on a miss
+    synchronized byte[] get(String key) {
+        if (this.index.get(key) == null) {
+            return null;
+        }
+        File f = this.file(key);
+        try {
+            byte[] png = Files.readAllBytes(f.toPath());
+            f.setLastModified(System.currentTimeMillis());
+            return png;
+        } catch (IOException e) {
+            //Removed behind our back, forget it
+            this.size -= this.index.remove(key);
+            return null;
+        }
+    }
+
+    synchronized void put(String key, byte[] png) throws IOException {
+        File tmp = new File(this.dir, key + ".tmp");
+        Files.write(tmp.toPath(), png);
+        Files.move(tmp.toPath(), this.file(key).toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        Long old = this.index.put(key, (long) png.length);
+        if (old != null) {
+            this.size -= old;
+        }
+        this.size += png.length;
+        this.evict(key);
+    }
+
+    //Drop least recently used entries, never the one just written
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> it = this.index.entrySet()
+                .iterator();
+        while (this.size > this.maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            if (e.getKey().equals(keep)) {
+                continue;
+            }
+            if (this.file(e.getKey()).delete()
+                    || !this.file(e.getKey()).exists()) {
+                this.size -= e.getValue();
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+import java.util.Locale;
+
+//Plain text scene description used by the render service
+//One object per line, # starts a comment:
+//  sphere <radius> <x> <y> <z> <r> <g> <b> <emittance> <material> [refIndex]
+//  plane <pos> <nx> <ny> <nz> <r> <g> <b> <emittance> <material> [refIndex]
+//An empty scene stands for the built-in room from RayTracer.render
+final class SceneFile {
+    private SceneFile() {
+    }
+
+    static Environment parse(String text) {
+        if (text == null || text.trim().isEmpty()) {
+            return RayTracer.render(1.6);
+        }
+        Environment rm = new Environment();
+        String[] lines = text.split("\n");
+        for (int n = 0; n < lines.length; n++) {
+            String line = lines[n];
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] f = line.split("\\s+");
+            if (f.length < 10 || f.length > 11) {
+                throw new IllegalArgumentException(
+                        "Line " + (n + 1) + ": expected 10 or 11 fields");
+            }
+            try {
+                Vector v = new Vector(Double.parseDouble(f[2]),
+                        Double.parseDouble(f[3]), Double.parseDouble(f[4]));
+                Objects obj;
+                String kind = f[0].toLowerCase(Locale.ROOT);
+                if (kind.equals("sphere")) {
+                    obj = new Sphere(Double.parseDouble(f[1]), v);
+                } else if (kind.equals("plane")) {
+                    obj = new Plane(Double.parseDouble(f[1]), v);
+                } else {
+                    throw new IllegalArgumentException(
+                            "Line " + (n + 1) + ": unknown object " + f[0]);
+                }
+                obj.setProp(
+                        new Vector(Double.parseDouble(f[5]),
+                                Double.parseDouble(f[6]),
+                                Double.parseDouble(f[7])),
+                        Double.parseDouble(f[8]),
+                        Material.valueOf(f[9].toUpperCase(Locale.ROOT)));
+                if (f.length == 11) {
+                    obj.refIndex = Double.parseDouble(f[10]);
+                }
+                rm.add(obj);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(
+                        "Line " + (n + 1) + ": " + e.getMessage(), e);
+            }
+        }
+        return rm;
+    }
+}
@@ -0,0 +1,182 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.imageio.ImageIO;
+
+//Frame sequence rendering
+//Three stage pipeline: while frame N is traced on the shared worker pool,
+//frame N+1 is posed (hierarchy refit or rebuilt) and frame N-1 is encoded
+//to PNG, each on its own thread. Moving instances are posed copy-on-write
+//(Environment.posed), so preparing the next frame never disturbs the one
+//being traced.
+class SequenceRenderer {
+    //Refit while at most this fraction of the bounded objects moves
+    private static final double REFIT_LIMIT = 0.25;
+
+    //Per-frame timing report
+    static final class FrameTime {
+        int frame;
+        int moved; //instances whose transform changed
+        boolean refit; //false if the hierarchy was rebuilt
+        long prepNanos, traceNanos, encodeNanos;
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "frame %4d: prep %7.2f ms (%s, %d moved), trace %8.2f ms,"
+                            + " encode %6.2f ms",
+                    this.frame, this.prepNanos / 1e6,
+                    this.refit ? "refit" : "rebuild", this.moved,
+                    this.traceNanos / 1e6, this.encodeNanos / 1e6);
+        }
+    }
+
+    private static final class Prepared {
+        Environment rm;
+        FrameTime time;
+    }
+
+    private SequenceRenderer() {
+    }
+
+    private static Prepared prepare(Animation anim, int f, Prepared prev,
+            RenderSettings set) throws InterruptedException {
+        long t0 = System.nanoTime();
+        Prepared p = new Prepared();
+        p.time = new FrameTime();
+        p.time.frame = f;
+        Map<Instance, Transform> changes = anim.changes(f);
+        p.time.moved = changes.size();
+        if (prev == null) {
+            p.rm = anim.scene.posed(changes, false);
+        } else if (changes.isEmpty()) {
+            p.rm = prev.rm;
+            p.time.refit = true;
+        } else {
+            int bounded = prev.rm.bvh.objs.length;
+            p.time.refit = changes.size() <= REFIT_LIMIT * bounded;
+            p.rm = prev.rm.posed(changes, p.time.refit);
+        }
+        //Caustic photons are scene prep too, so they overlap tracing
+        PhotonMap.prepare(p.rm, set, new AtomicBoolean(false));
+        p.time.prepNanos = System.nanoTime() - t0;
+        return p;
+    }
+
+    //Render every frame of anim into dir/frame_0000.png, ... using the size,
+    //spp and depth of set (its camera is replaced per frame)
+    static List<FrameTime> render(final Animation anim,
+            final RenderSettings set, final File dir)
+            throws IOException, InterruptedException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        ExecutorService prep = Executors.newSingleThreadExecutor();
+        ExecutorService encode = Executors.newSingleThreadExecutor();
+        List<FrameTime> times = new ArrayList<FrameTime>();
+        try {
+            Future<Prepared> next = prep.submit(new Callable<Prepared>() {
+                @Override
+                public Prepared call() throws InterruptedException {
+                    return prepare(anim, 0, null, set);
+                }
+            });
+            Future<?> encoding = null;
+            for (int f = 0; f < anim.frames(); f++) {
+                final Prepared cur = next.get();
+                final int nf = f + 1;
+                if (nf < anim.frames()) {
+                    next = prep.submit(new Callable<Prepared>() {
+                        @Override
+                        public Prepared call() throws InterruptedException {
+                            return prepare(anim, nf, cur, set);
+                        }
+                    });
+                }
+
+                long t0 = System.nanoTime();
+                final FrameBuffer fb = new FrameBuffer(set.width, set.height);
+                RenderSettings frame = new RenderSettings(set.width,
+                        set.height, set.spp, set.maxDepth, anim.cameras[f]);
+                frame.integrator = set.integrator;
+                frame.causticBytes = set.causticBytes;
+                RayTracer.renderFrame(cur.rm, frame, fb,
+                        new AtomicBoolean(false));
+                cur.time.traceNanos = System.nanoTime() - t0;
+                times.add(cur.time);
+
+                //Keep at most one frame encoding behind the tracer
+                if (encoding != null) {
+                    encoding.get();
+                }
+                final File out = new File(dir,
+                        String.format("frame_%04d.png", f));
+                encoding = encode.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        long e0 = System.nanoTime();
+                        ImageIO.write(fb.toImage(), "png", out);
+                        cur.time.encodeNanos = System.nanoTime() - e0;
+                        return null;
+                    }
+                });
+            }
+            if (encoding != null) {
+                encoding.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            prep.shutdownNow();
+            encode.shutdownNow();
+        }
+        return times;
+    }
+
+    //Demo: a glass sphere orbiting inside the room, seen from a slow dolly
+    //Arguments: [frames] [output directory]
+    public static void main(String[] args)
+            throws IOException, InterruptedException {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 24;
+        File dir = new File(args.length > 1 ? args[1] : "frames");
+
+        Environment rm = RayTracer.render(1.6);
+        Environment glass = new Environment();
+        Objects ball = new Sphere(0.5, new Vector(0, 0, 0));
+        ball.setProp(new Vector(10, 10, 10), 0.0, Material.REFRACTIVE);
+        ball.refIndex = 1.5;
+        glass.add(ball);
+        Instance orbit = new Instance(glass, Transform.identity());
+        rm.add(orbit);
+
+        Camera[] cams = new Camera[frames];
+        Transform[] path = new Transform[frames];
+        for (int f = 0; f < frames; f++) {
+            double a = 2 * RayTracer.PI * f / frames;
+            cams[f] = new Camera().moved(0, 0, 1.5 * f / frames);
+            path[f] = Transform.translate(0.5, 1.5 * Math.sin(a),
+                    -4.0 + Math.cos(a));
+        }
+        Animation anim = new Animation(rm, cams);
+        anim.track(orbit, path);
+
+        long t0 = System.nanoTime();
+        List<FrameTime> times = render(anim, RenderSettings.fromGlobals(),
+                dir);
+        double wall = (System.nanoTime() - t0) / 1e9;
+        for (FrameTime t : times) {
+            System.out.println(t);
+        }
+        System.out.printf("%d frames in %.2f s (%.2f s per frame)%n",
+                times.size(), wall, wall / times.size());
+    }
+}
@@ -0,0 +1,152 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+//Frame buffer published through a memory-mapped file
+//Lets a viewer in another process (LiveViewer) watch a render without
+//touching the render JVM. Layout, all ints in native order:
+//  0  magic        4  version     8  width      12 height
+//  16 tile rows    20 tiles       24 spp        28 passes so far
+//  32 one sequence number per tile, then one RGB int per pixel
+//A tile is a band of full rows, each written by a single render task as a
+//seqlock: its number is odd while the task writes the band and bumped to
+//the next even value after, so a reader retries a band whose number was
+//odd or changed while it copied. Nothing is locked on either side.
+class SharedFrame {
+    static final int MAGIC = 0x52544642; //"RTFB"
+    static final int VERSION = 1;
+    //Both integrators size their row tasks from this, so that every tile is
+    //written by one task only
+    static final int TILE_ROWS = 4;
+
+    private static final int WIDTH = 8, HEIGHT = 12, TILE = 16, TILES = 20,
+            SPP = 24, PASSES = 28, SEQ = 32;
+    private static final VarHandle INT = MethodHandles
+            .byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    int width, height, tiles;
+    private final MappedByteBuffer map;
+    private final IntBuffer pixels;
+
+    private SharedFrame(MappedByteBuffer m) {
+        this.map = m;
+        this.map.order(ByteOrder.nativeOrder());
+        this.width = this.map.getInt(WIDTH);
+        this.height = this.map.getInt(HEIGHT);
+        this.tiles = this.map.getInt(TILES);
+        this.map.position(pixelOffset(this.tiles));
+        this.pixels = this.map.slice().order(ByteOrder.nativeOrder())
+                .asIntBuffer();
+    }
+
+    private static int pixelOffset(int tiles) {
+        return SEQ + tiles * 4;
+    }
+
+    //New frame for fb at f. The file is replaced rather than overwritten, so
+    //a viewer still mapping the previous frame never sees it shrink.
+    static SharedFrame create(File f, FrameBuffer fb, int spp)
+            throws IOException {
+        int tiles = (fb.height + TILE_ROWS - 1) / TILE_ROWS;
+        long size = pixelOffset(tiles) + 4L * fb.width * fb.height;
+        File tmp = new File(f.getPath() + ".tmp");
+        MappedByteBuffer m;
+        try (FileChannel ch = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            m = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        m.order(ByteOrder.nativeOrder());
+        m.putInt(4, VERSION);
+        m.putInt(WIDTH, fb.width);
+        m.putInt(HEIGHT, fb.height);
+        m.putInt(TILE, TILE_ROWS);
+        m.putInt(TILES, tiles);
+        m.putInt(SPP, spp);
+        //Magic last, so a reader never takes a half written header
+        INT.setRelease(m, 0, MAGIC);
+        Files.move(tmp.toPath(), f.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return new SharedFrame(m);
+    }
+
+    //Map a published frame read only
+    static SharedFrame open(File f) throws IOException {
+        MappedByteBuffer m;
+        try (FileChannel ch = FileChannel.open(f.toPath(),
+                StandardOpenOption.READ)) {
+            if (ch.size() < SEQ) {
+                throw new IOException("Not a shared frame: " + f);
+            }
+            m = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        m.order(ByteOrder.nativeOrder());
+        if ((int) INT.getAcquire(m, 0) != MAGIC
+                || m.getInt(4) != VERSION || m.getInt(TILE) != TILE_ROWS) {
+            throw new IOException("Not a shared frame: " + f);
+        }
+        return new SharedFrame(m);
+    }
+
+    int spp() {
+        return this.map.getInt(SPP);
+    }
+
+    int passes() {
+        return (int) INT.getAcquire(this.map, PASSES);
+    }
+
+    void setPasses(int n) {
+        INT.setRelease(this.map, PASSES, n);
+    }
+
+    //Sequence number of a tile, odd while it is being written
+    int sequence(int tile) {
+        return (int) INT.getAcquire(this.map, SEQ + tile * 4);
+    }
+
+    //Copy rows y1 to y2 of fb in, called by the task that owns the rows
+    void publish(FrameBuffer fb, int y1, int y2) {
+        for (int t = y1 / TILE_ROWS; t * TILE_ROWS < y2; t++) {
+            int at = SEQ + t * 4;
+            int seq = (int) INT.get(this.map, at);
+            INT.setOpaque(this.map, at, seq + 1);
+            VarHandle.storeStoreFence();
+            int r2 = Math.min(this.height, (t + 1) * TILE_ROWS);
+            for (int y = t * TILE_ROWS; y < r2; y++) {
+                for (int x = 0; x < this.width; x++) {
+                    int p = y * this.width + x;
+                    this.pixels.put(p, fb.packed(p));
+                }
+            }
+            INT.setRelease(this.map, at, seq + 2);
+        }
+    }
+
+    //Copy a tile into argb (width * height, row major) if no write to it
+    //overlapped the copy. Returns the tile's sequence number, or -1 when
+    //it was being written and should be read again later.
+    int read(int tile, int[] argb) {
+        int seq = this.sequence(tile);
+        if ((seq & 1) != 0) {
+            return -1;
+        }
+        int from = tile * TILE_ROWS * this.width;
+        int to = Math.min(this.height, (tile + 1) * TILE_ROWS) * this.width;
+        for (int p = from; p < to; p++) {
+            argb[p] = 0xFF000000 | this.pixels.get(p);
+        }
+        VarHandle.loadLoadFence();
+        return this.sequence(tile) == seq ? seq : -1;
+    }
+}
@@ -0,0 +1,121 @@
+//Affine transforms for instanced geometry
+//Stored as the top three rows of a 4x4 matrix, together with its inverse
+//so rays can be moved into object space without inverting per ray
+class Transform {
+    double[] m; //object to world, row major 3x4
+    double[] inv; //world to object
+
+    private Transform(double[] m0, double[] inv0) {
+        this.m = m0;
+        this.inv = inv0;
+    }
+
+    static Transform identity() {
+        return new Transform(
+                new double[] { 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0 },
+                new double[] { 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0 });
+    }
+
+    static Transform translate(double x, double y, double z) {
+        return new Transform(
+                new double[] { 1, 0, 0, x, 0, 1, 0, y, 0, 0, 1, z },
+                new double[] { 1, 0, 0, -x, 0, 1, 0, -y, 0, 0, 1, -z });
+    }
+
+    static Transform scale(double x, double y, double z) {
+        return new Transform(
+                new double[] { x, 0, 0, 0, 0, y, 0, 0, 0, 0, z, 0 },
+                new double[] { 1 / x, 0, 0, 0, 0, 1 / y, 0, 0, 0, 0, 1 / z, 0 });
+    }
+
+    //Rotation by angle (radians) around a coordinate axis, 0 = x, 1 = y, 2 = z
+    static Transform rotate(int axis, double angle) {
+        double c = Math.cos(angle);
+        double s = Math.sin(angle);
+        double[] r = new double[12];
+        int a = (axis + 1) % 3;
+        int b = (axis + 2) % 3;
+        r[axis * 4 + axis] = 1;
+        r[a * 4 + a] = c;
+        r[a * 4 + b] = -s;
+        r[b * 4 + a] = s;
+        r[b * 4 + b] = c;
+        //Rotations are orthogonal, so the inverse is the transpose
+        double[] t = new double[12];
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                t[i * 4 + j] = r[j * 4 + i];
+            }
+        }
+        return new Transform(r, t);
+    }
+
+    private static double[] mul(double[] a, double[] b) {
+        double[] c = new double[12];
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 4; j++) {
+                double sum = a[i * 4] * b[j] + a[i * 4 + 1] * b[4 + j]
+                        + a[i * 4 + 2] * b[8 + j];
+                if (j == 3) {
+                    sum += a[i * 4 + 3];
+                }
+                c[i * 4 + j] = sum;
+            }
+        }
+        return c;
+    }
+
+    //Apply this transform first, then t
+    Transform then(Transform t) {
+        return new Transform(mul(t.m, this.m), mul(this.inv, t.inv));
+    }
+
+    private static Vector point(double[] a, Vector v) {
+        return new Vector(a[0] * v.x + a[1] * v.y + a[2] * v.z + a[3],
+                a[4] * v.x + a[5] * v.y + a[6] * v.z + a[7],
+                a[8] * v.x + a[9] * v.y + a[10] * v.z + a[11]);
+    }
+
+    private static Vector dir(double[] a, Vector v) {
+        return new Vector(a[0] * v.x + a[1] * v.y + a[2] * v.z,
+                a[4] * v.x + a[5] * v.y + a[6] * v.z,
+                a[8] * v.x + a[9] * v.y + a[10] * v.z);
+    }
+
+    Vector toWorld(Vector p) {
+        return point(this.m, p);
+    }
+
+    Vector toObject(Vector p) {
+        return point(this.inv, p);
+    }
+
+    Vector dirToObject(Vector d) {
+        return dir(this.inv, d);
+    }
+
+    //Normals use the inverse transpose so they stay orthogonal under scaling
+    Vector normalToWorld(Vector n) {
+        double[] a = this.inv;
+        return new Vector(a[0] * n.x + a[4] * n.y + a[8] * n.z,
+                a[1] * n.x + a[5] * n.y + a[9] * n.z,
+                a[2] * n.x + a[6] * n.y + a[10] * n.z).norm();
+    }
+
+    //World box around an object space box, from its eight corners
+    double[] bounds(double[] box) {
+        double[] out = { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE,
+                -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+        for (int c = 0; c < 8; c++) {
+            Vector p = this.toWorld(new Vector(box[(c & 1) * 3],
+                    box[((c >> 1) & 1) * 3 + 1], box[((c >> 2) & 1) * 3 + 2]));
+            out[0] = Math.min(out[0], p.x);
+            out[1] = Math.min(out[1], p.y);
+            out[2] = Math.min(out[2], p.z);
+            out[3] = Math.max(out[3], p.x);
+            out[4] = Math.max(out[4], p.y);
+            out[5] = Math.max(out[5], p.z);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,453 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//Wavefront (breadth first) integrator
+//Instead of following one path to the end like RayTracer.trace, a task
+//keeps a batch of paths in primitive arrays and advances all of them one
+//bounce at a time: intersect the whole batch, bucket the hits by Material,
+//run one shading loop per material, and compact the survivors into the
+//next batch. Estimates the same quantity as trace, including its diffuse
+//weighting and the total internal reflection cut off.
+final class WavefrontTracer {
+    private WavefrontTracer() {
+    }
+
+    //Whole SharedFrame tiles, so each tile keeps a single writer
+    private static final int ROWS_PER_TASK = 4 * SharedFrame.TILE_ROWS;
+    private static final Material[] MATERIALS = Material.values();
+
+    //Per-thread path state, reused across passes
+    private static final class Batch {
+        int cap;
+        //current bounce, swapped with the next* arrays after shading
+        double[] ox, oy, oz, dx, dy, dz, tr, tg, tb;
+        int[] slot; //pixel of the path within the task
+        int[] state; //PhotonMap path state
+        double[] nox, noy, noz, ndx, ndy, ndz, ntr, ntg, ntb;
+        int[] nslot, nstate;
+        //hits of the current bounce
+        double[] px, py, pz, nx, ny, nz;
+        Objects[] hit;
+        int[] order; //path indices sorted by material
+        //accumulated radiance per pixel slot
+        double[] lr, lg, lb;
+        //render cost per pixel slot, only kept when stats are on
+        long[] rays, tests;
+        int[] depth;
+
+        Batch(int n) {
+            this.cap = n;
+            this.ox = new double[n];
+            this.oy = new double[n];
+            this.oz = new double[n];
+            this.dx = new double[n];
+            this.dy = new double[n];
+            this.dz = new double[n];
+            this.tr = new double[n];
+            this.tg = new double[n];
+            this.tb = new double[n];
+            this.slot = new int[n];
+            this.state = new int[n];
+            this.nox = new double[n];
+            this.noy = new double[n];
+            this.noz = new double[n];
+            this.ndx = new double[n];
+            this.ndy = new double[n];
+            this.ndz = new double[n];
+            this.ntr = new double[n];
+            this.ntg = new double[n];
+            this.ntb = new double[n];
+            this.nslot = new int[n];
+            this.nstate = new int[n];
+            this.px = new double[n];
+            this.py = new double[n];
+            this.pz = new double[n];
+            this.nx = new double[n];
+            this.ny = new double[n];
+            this.nz = new double[n];
+            this.hit = new Objects[n];
+            this.order = new int[n];
+            this.lr = new double[n];
+            this.lg = new double[n];
+            this.lb = new double[n];
+            this.rays = new long[n];
+            this.tests = new long[n];
+            this.depth = new int[n];
+        }
+
+        void swap() {
+            double[] d;
+            d = this.ox;
+            this.ox = this.nox;
+            this.nox = d;
+            d = this.oy;
+            this.oy = this.noy;
+            this.noy = d;
+            d = this.oz;
+            this.oz = this.noz;
+            this.noz = d;
+            d = this.dx;
+            this.dx = this.ndx;
+            this.ndx = d;
+            d = this.dy;
+            this.dy = this.ndy;
+            this.ndy = d;
+            d = this.dz;
+            this.dz = this.ndz;
+            this.ndz = d;
+            d = this.tr;
+            this.tr = this.ntr;
+            this.ntr = d;
+            d = this.tg;
+            this.tg = this.ntg;
+            this.ntg = d;
+            d = this.tb;
+            this.tb = this.ntb;
+            this.ntb = d;
+            int[] s = this.slot;
+            this.slot = this.nslot;
+            this.nslot = s;
+            s = this.state;
+            this.state = this.nstate;
+            this.nstate = s;
+        }
+
+        //Append a surviving path to the next bounce
+        void emit(int k, double x, double y, double z, double ddx, double ddy,
+                double ddz, double r, double g, double b, int s, int st) {
+            this.nox[k] = x;
+            this.noy[k] = y;
+            this.noz[k] = z;
+            this.ndx[k] = ddx;
+            this.ndy[k] = ddy;
+            this.ndz[k] = ddz;
+            this.ntr[k] = r;
+            this.ntg[k] = g;
+            this.ntb[k] = b;
+            this.nslot[k] = s;
+            this.nstate[k] = st;
+        }
+    }
+
+    private static final ThreadLocal<Batch> BATCH = new ThreadLocal<Batch>();
+
+    private static Batch batch(int n) {
+        Batch b = BATCH.get();
+        if (b == null || b.cap < n) {
+            b = new Batch(n);
+            BATCH.set(b);
+        }
+        return b;
+    }
+
+    //Same contract as RayTracer.renderFrame
+    static boolean renderFrame(final Environment rm, final RenderSettings set,
+            final FrameBuffer fb, final AtomicBoolean cancel)
+            throws InterruptedException {
+        for (int pass = 0; pass < set.spp; pass++) {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int r = 0; r < fb.height; r += ROWS_PER_TASK) {
+                final int r1 = r;
+                final int r2 = Math.min(fb.height, r + ROWS_PER_TASK);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        if (!cancel.get()) {
+                            tracePass(rm, set, fb, r1, r2);
+                        }
+                        return null;
+                    }
+                });
+            }
+            RayTracer.runAll(tasks);
+            if (cancel.get()) {
+                return false;
+            }
+            fb.endPass();
+        }
+        return true;
+    }
+
+    //One sample for every pixel of rows r1 to r2
+    private static void tracePass(Environment rm, RenderSettings set,
+            FrameBuffer fb, int r1, int r2) {
+        int n = (r2 - r1) * fb.width;
+        Batch b = batch(n);
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        //Both sequences share a base, as in raySampling
+        int start = rnd.nextInt(1 << 12);
+        Halton h1 = new Halton(start, 2);
+        Halton h2 = new Halton(start, 2);
+        //Task's own counter, its rows have no other writer
+        RenderStats.Counter cost = null;
+        long t0 = 0;
+        if (fb.stats != null) {
+            cost = new RenderStats.Counter();
+            t0 = System.nanoTime();
+        }
+
+        //Camera rays, rows sweep the camera's x axis as in toPixel
+        int count = 0;
+        for (int y = r1; y < r2; y++) {
+            for (int x = 0; x < fb.width; x++) {
+                Ray ray = set.camera.ray(y, x, fb.height, fb.width,
+                        rnd.nextDouble() / 1000, rnd.nextDouble() / 1000);
+                b.ox[count] = ray.origin.x;
+                b.oy[count] = ray.origin.y;
+                b.oz[count] = ray.origin.z;
+                b.dx[count] = ray.direction.x;
+                b.dy[count] = ray.direction.y;
+                b.dz[count] = ray.direction.z;
+                b.tr[count] = 1;
+                b.tg[count] = 1;
+                b.tb[count] = 1;
+                b.slot[count] = count;
+                b.state[count] = PhotonMap.DIRECT;
+                b.lr[count] = 0;
+                b.lg[count] = 0;
+                b.lb[count] = 0;
+                b.rays[count] = 0;
+                b.tests[count] = 0;
+                b.depth[count] = 0;
+                count++;
+            }
+        }
+
+        Ray ray = new Ray(new Vector(0, 0, 1), new Vector(0, 0, 1));
+        Intersection near = new Intersection();
+        int[] buckets = new int[MATERIALS.length + 1];
+        for (int depth = 0; depth <= set.maxDepth && count > 0; depth++) {
+            //Intersect the whole batch, dropping misses
+            int hits = 0;
+            for (int i = 0; i < count; i++) {
+                ray.origin = new Vector(b.ox[i], b.oy[i], b.oz[i]);
+                ray.direction = new Vector(b.dx[i], b.dy[i], b.dz[i]);
+                near.scalar = Math.pow(10, 6);
+                near.objHit = null;
+                near.hitNormal = null;
+                long tested = cost == null ? 0 : cost.tests;
+                rm.intersecting(ray, near, cost);
+                if (cost != null) {
+                    //Charged to the pixel the path belongs to, as in trace
+                    int s = b.slot[i];
+                    b.rays[s]++;
+                    b.tests[s] += cost.tests - tested;
+                    b.depth[s] = depth;
+                }
+                if (near.miss()) {
+                    b.hit[i] = null;
+                    continue;
+                }
+                Vector p = ray.origin.vAdd(ray.direction.sMult(near.scalar));
+                Vector nrm = near.normal(p);
+                b.hit[i] = near.objHit;
+                b.px[i] = p.x;
+                b.py[i] = p.y;
+                b.pz[i] = p.z;
+                b.nx[i] = nrm.x;
+                b.ny[i] = nrm.y;
+                b.nz[i] = nrm.z;
+                hits++;
+            }
+            if (hits == 0) {
+                break;
+            }
+
+            //Counting sort of the hits by material
+            for (int m = 0; m < buckets.length; m++) {
+                buckets[m] = 0;
+            }
+            for (int i = 0; i < count; i++) {
+                if (b.hit[i] != null) {
+                    buckets[b.hit[i].type.ordinal() + 1]++;
+                }
+            }
+            for (int m = 1; m < buckets.length; m++) {
+                buckets[m] += buckets[m - 1];
+            }
+            int[] fill = buckets.clone();
+            for (int i = 0; i < count; i++) {
+                if (b.hit[i] != null) {
+                    b.order[fill[b.hit[i].type.ordinal()]++] = i;
+                }
+            }
+
+            //One shading loop per material
+            int next = 0;
+            for (int m = 0; m < MATERIALS.length; m++) {
+                int lo = buckets[m];
+                int hi = buckets[m + 1];
+                if (MATERIALS[m] == Material.DIFFUSE) {
+                    next = shadeDiffuse(b, lo, hi, next, h1, h2, rnd,
+                            rm.caustics);
+                } else if (MATERIALS[m] == Material.SPECULAR) {
+                    next = shadeSpecular(b, lo, hi, next, rm.caustics);
+                } else {
+                    next = shadeRefractive(b, lo, hi, next, rm.caustics);
+                }
+            }
+            b.swap();
+            count = next;
+        }
+
+        //Paths of a batch advance together, so the time is split evenly
+        long each = 0;
+        if (cost != null) {
+            each = (System.nanoTime() - t0) / n;
+        }
+        int s = 0;
+        for (int y = r1; y < r2; y++) {
+            for (int x = 0; x < fb.width; x++) {
+                fb.add(x, y, new Vector(b.lr[s], b.lg[s], b.lb[s]));
+                if (cost != null) {
+                    cost.rays = b.rays[s];
+                    cost.tests = b.tests[s];
+                    cost.depthSum = b.depth[s];
+                    fb.stats.record(x, y, each, 1, cost);
+                }
+                s++;
+            }
+        }
+        fb.publish(r1, r2);
+    }
+
+    //Emission picked up at a hit, as in trace
+    private static void emission(Batch b, int i, PhotonMap map) {
+        if (!PhotonMap.emits(map, b.state[i], b.hit[i])) {
+            return;
+        }
+        double e = 2 * b.hit[i].emittance;
+        int s = b.slot[i];
+        b.lr[s] += b.tr[i] * e;
+        b.lg[s] += b.tg[i] * e;
+        b.lb[s] += b.tb[i] * e;
+    }
+
+    private static int shadeDiffuse(Batch b, int lo, int hi, int next,
+            Halton h1, Halton h2, ThreadLocalRandom rnd, PhotonMap map) {
+        for (int k = lo; k < hi; k++) {
+            int i = b.order[k];
+            emission(b, i, map);
+            if (map != null) {
+                Vector l = map.radiance(new Vector(b.px[i], b.py[i], b.pz[i]),
+                        new Vector(b.nx[i], b.ny[i], b.nz[i]),
+                        b.hit[i].color);
+                int s = b.slot[i];
+                b.lr[s] += b.tr[i] * l.x;
+                b.lg[s] += b.tg[i] * l.y;
+                b.lb[s] += b.tb[i] * l.z;
+            }
+            h1.next();
+            h2.next();
+            //hemisphere() of trace, the direction is left unnormalized
+            double r = rnd.nextDouble();
+            double phi = 2 * RayTracer.PI * h2.get();
+            double ddx = b.nx[i] + Math.cos(phi) * r;
+            double ddy = b.ny[i] + Math.sin(phi) * r;
+            double ddz = b.nz[i] + h1.get();
+            double cosine = ddx * b.nx[i] + ddy * b.ny[i] + ddz * b.nz[i];
+            Vector c = b.hit[i].color;
+            double w = cosine * 0.1;
+            b.emit(next++, b.px[i], b.py[i], b.pz[i], ddx, ddy, ddz,
+                    b.tr[i] * w * c.x, b.tg[i] * w * c.y, b.tb[i] * w * c.z,
+                    b.slot[i], PhotonMap.next(map, b.state[i],
+                            Material.DIFFUSE));
+        }
+        return next;
+    }
+
+    private static int shadeSpecular(Batch b, int lo, int hi, int next,
+            PhotonMap map) {
+        for (int k = lo; k < hi; k++) {
+            int i = b.order[k];
+            emission(b, i, map);
+            double cosine = b.dx[i] * b.nx[i] + b.dy[i] * b.ny[i]
+                    + b.dz[i] * b.nz[i];
+            double ddx = b.dx[i] - b.nx[i] * 2 * cosine;
+            double ddy = b.dy[i] - b.ny[i] * 2 * cosine;
+            double ddz = b.dz[i] - b.nz[i] * 2 * cosine;
+            double len = Math.sqrt(ddx * ddx + ddy * ddy + ddz * ddz);
+            b.emit(next++, b.px[i], b.py[i], b.pz[i], ddx / len, ddy / len,
+                    ddz / len, b.tr[i], b.tg[i], b.tb[i], b.slot[i],
+                    PhotonMap.next(map, b.state[i], Material.SPECULAR));
+        }
+        return next;
+    }
+
+    private static int shadeRefractive(Batch b, int lo, int hi, int next,
+            PhotonMap map) {
+        for (int k = lo; k < hi; k++) {
+            int i = b.order[k];
+            double n = b.hit[i].refIndex;
+            double nx = b.nx[i];
+            double ny = b.ny[i];
+            double nz = b.nz[i];
+            //if ray enters object
+            if (nx * b.dx[i] + ny * b.dy[i] + nz * b.dz[i] > 0) {
+                nx = -nx;
+                ny = -ny;
+                nz = -nz;
+                n = 1 / n;
+            }
+            n = 1 / n;
+            double cosine1 = -(nx * b.dx[i] + ny * b.dy[i] + nz * b.dz[i]);
+            double cosine2 = 1.0 - n * n * (1.0 - cosine1 * cosine1);
+            if (cosine2 <= 0) {
+                //total refraction, trace drops this hit's emission as well
+                continue;
+            }
+            emission(b, i, map);
+            double f = n * cosine1 - Math.sqrt(cosine2);
+            double ddx = b.dx[i] * n + nx * f;
+            double ddy = b.dy[i] * n + ny * f;
+            double ddz = b.dz[i] * n + nz * f;
+            double len = Math.sqrt(ddx * ddx + ddy * ddy + ddz * ddz);
+            b.emit(next++, b.px[i], b.py[i], b.pz[i], ddx / len, ddy / len,
+                    ddz / len, b.tr[i], b.tg[i], b.tb[i], b.slot[i],
+                    PhotonMap.next(map, b.state[i], Material.REFRACTIVE));
+        }
+        return next;
+    }
+
+    //Benchmark against the recursive integrator on the built-in room
+    //Arguments: [width] [height] [spp] [runs]
+    public static void main(String[] args) throws InterruptedException {
+        int w = args.length > 0 ? Integer.parseInt(args[0]) : RayMain.WIDTH;
+        int h = args.length > 1 ? Integer.parseInt(args[1]) : RayMain.HEIGHT;
+        int spp = args.length > 2 ? Integer.parseInt(args[2]) : RayMain.SPP;
+        int runs = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        Environment rm = RayTracer.render(1.6);
+        rm.build();
+        FrameBuffer[] last = new FrameBuffer[2];
+        for (RenderSettings.Integrator in : RenderSettings.Integrator
+                .values()) {
+            RenderSettings set = new RenderSettings(w, h, spp,
+                    RayMain.MAX_DEPTH);
+            set.integrator = in;
+            //The first run warms up the JIT
+            for (int run = 0; run <= runs; run++) {
+                FrameBuffer fb = new FrameBuffer(w, h);
+                long t0 = System.nanoTime();
+                RayTracer.renderFrame(rm, set, fb, new AtomicBoolean(false));
+                double ms = (System.nanoTime() - t0) / 1e6;
+                if (run > 0) {
+                    System.out.printf("%-9s run %d: %8.1f ms%n", in, run, ms);
+                }
+                last[in.ordinal()] = fb;
+            }
+        }
+        //Both estimate the same image, so the means should agree
+        double[] mean = new double[2];
+        for (int k = 0; k < 2; k++) {
+            for (int i = 0; i < last[k].rgb.length; i++) {
+                mean[k] += last[k].rgb[i] / last[k].samples[i / 3];
+            }
+            mean[k] /= last[k].rgb.length;
+        }
+        System.out.printf("mean radiance: path %.3f, wavefront %.3f%n",
+                mean[0], mean[1]);
+    }
+}
@@ -0,0 +1,148 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BvhTest {
+    private static final int RAYS = 5000;
+
+    private static Ray randomRay(Random rnd) {
+        Vector o = new Vector(rnd.nextDouble() * 4 - 2,
+                rnd.nextDouble() * 4 - 2, rnd.nextDouble() * 4 - 2);
+        Vector d = new Vector(rnd.nextGaussian(), rnd.nextGaussian(),
+                rnd.nextGaussian());
+        return new Ray(o, d);
+    }
+
+    private static Sphere randomSphere(Random rnd) {
+        return new Sphere(0.05 + rnd.nextDouble() * 0.4,
+                new Vector(rnd.nextDouble() * 8 - 4, rnd.nextDouble() * 8 - 4,
+                        rnd.nextDouble() * 8 - 4));
+    }
+
+    private static void assertSameHit(Intersection want, Intersection got) {
+        assertSame(want.objHit, got.objHit);
+        if (!want.miss()) {
+            assertEquals(want.scalar, got.scalar, 1e-9);
+        }
+    }
+
+    @Test
+    public void hierarchyFindsTheSameHitsAsBruteForce() {
+        Random rnd = new Random(1);
+        Environment fast = new Environment();
+        Environment brute = new Environment();
+        for (int i = 0; i < 200; i++) {
+            Sphere s = randomSphere(rnd);
+            fast.add(s);
+            brute.add(s);
+        }
+        Plane floor = new Plane(5, new Vector(0, 1, 0));
+        fast.add(floor);
+        brute.add(floor);
+        fast.build();
+
+        int hits = 0;
+        for (int i = 0; i < RAYS; i++) {
+            Ray ray = randomRay(rnd);
+            Intersection want = brute.intersecting(
+                    new Ray(ray.origin, ray.direction));
+            assertSameHit(want, fast.intersecting(ray));
+            if (want.objHit instanceof Sphere) {
+                hits++;
+            }
+        }
+        assertTrue("too few sphere hits to mean anything", hits > RAYS / 10);
+    }
+
+    @Test
+    public void instanceMatchesTracingTheTransformedRay() {
+        Random rnd = new Random(2);
+        Environment shared = new Environment();
+        Environment flat = new Environment();
+        for (int i = 0; i < 50; i++) {
+            Sphere s = randomSphere(rnd);
+            shared.add(s);
+            flat.add(s);
+        }
+        Transform t = Transform.scale(0.5, 2, 1)
+                .then(Transform.rotate(1, 0.7))
+                .then(Transform.translate(1, -2, -3));
+        Environment world = new Environment();
+        world.add(new Instance(shared, t));
+        world.build();
+
+        int hits = 0;
+        for (int i = 0; i < RAYS; i++) {
+            Ray ray = randomRay(rnd);
+            Intersection got = world.intersecting(
+                    new Ray(ray.origin, ray.direction));
+            Vector dir = t.dirToObject(ray.direction);
+            double len = dir.mag();
+            Intersection want = flat.intersecting(
+                    new Ray(t.toObject(ray.origin), dir));
+            assertSame(want.objHit, got.objHit);
+            if (want.miss()) {
+                continue;
+            }
+            hits++;
+            assertEquals(want.scalar / len, got.scalar, 1e-7);
+            Vector p = ray.origin.vAdd(ray.direction.sMult(got.scalar));
+            assertEquals(1, got.normal(p).mag(), 1e-9);
+        }
+        assertTrue(hits > 0);
+    }
+
+    private static Environment cluster(Random rnd) {
+        Environment g = new Environment();
+        for (int i = 0; i < 5; i++) {
+            Sphere s = new Sphere(0.1 + rnd.nextDouble() * 0.2,
+                    new Vector(rnd.nextDouble() - 0.5, rnd.nextDouble() - 0.5,
+                            rnd.nextDouble() - 0.5));
+            g.add(s);
+        }
+        return g;
+    }
+
+    @Test
+    public void refitFindsTheSameHitsAsRebuild() {
+        Random rnd = new Random(3);
+        Environment scene = new Environment();
+        List<Instance> moving = new ArrayList<Instance>();
+        for (int i = 0; i < 40; i++) {
+            Instance inst = new Instance(cluster(rnd), Transform.translate(
+                    rnd.nextDouble() * 6 - 3, rnd.nextDouble() * 6 - 3,
+                    rnd.nextDouble() * 6 - 3));
+            scene.add(inst);
+            if (i % 4 == 0) {
+                moving.add(inst);
+            }
+        }
+        scene.add(randomSphere(rnd));
+        scene.add(new Plane(4, new Vector(0, 0, 1)));
+        scene.build();
+
+        Map<Instance, Transform> poses = new HashMap<Instance, Transform>();
+        for (Instance inst : moving) {
+            poses.put(inst, Transform.translate(rnd.nextDouble() * 6 - 3,
+                    rnd.nextDouble() * 6 - 3, rnd.nextDouble() * 6 - 3));
+        }
+        Environment refit = scene.posed(poses, true);
+        Environment rebuilt = scene.posed(poses, false);
+
+        for (int i = 0; i < RAYS; i++) {
+            Ray ray = randomRay(rnd);
+            Intersection want = rebuilt.intersecting(
+                    new Ray(ray.origin, ray.direction));
+            Intersection got = refit.intersecting(ray);
+            assertSameHit(want, got);
+        }
+    }
+}
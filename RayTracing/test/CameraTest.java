@@ -0,0 +1,45 @@
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CameraTest {
+    //RayTracer.camera before the Camera class, x runs over w and y over h,
+    //jittered and normalized as sample did
+    private static Vector legacy(double x, double y, double w, double h,
+            double jx, double jy) {
+        double viewX = RayTracer.PI / 4;
+        double viewY = (h / w) * viewX;
+        Vector cam = new Vector(((2 * x - w) / w) * Math.tan(viewX),
+                ((2 * y - h) / h) * Math.tan(viewY), -1.0);
+        cam.x = cam.x + jx;
+        cam.y = cam.y + jy;
+        return cam.vSub(new Vector(0, 0, 0)).norm();
+    }
+
+    @Test
+    public void defaultCameraReproducesTheLegacyRays() {
+        Camera cam = new Camera();
+        Random rnd = new Random(5);
+        int[][] sizes = { { 300, 300 }, { 640, 360 }, { 7, 13 } };
+        for (int[] size : sizes) {
+            int w = size[0];
+            int h = size[1];
+            for (int k = 0; k < 2000; k++) {
+                double x = rnd.nextInt(w);
+                double y = rnd.nextInt(h);
+                double jx = rnd.nextDouble() / 1000;
+                double jy = rnd.nextDouble() / 1000;
+                Ray ray = cam.ray(x, y, w, h, jx, jy);
+                Vector want = legacy(x, y, w, h, jx, jy);
+                assertEquals(0, ray.origin.x, 0);
+                assertEquals(0, ray.origin.y, 0);
+                assertEquals(0, ray.origin.z, 0);
+                assertEquals(want.x, ray.direction.x, 1e-12);
+                assertEquals(want.y, ray.direction.y, 1e-12);
+                assertEquals(want.z, ray.direction.z, 1e-12);
+            }
+        }
+    }
+}
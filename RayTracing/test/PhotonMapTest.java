@@ -0,0 +1,133 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class PhotonMapTest {
+    private static final long BUDGET = 256 * 1024;
+
+    //A light above a glass ball above a floor, focusing a caustic
+    private static Environment glassScene(boolean glass) {
+        Environment rm = new Environment();
+        Objects light = new Sphere(0.3, new Vector(0, 0, 4));
+        light.setProp(new Vector(1, 1, 1), 100, Material.DIFFUSE);
+        rm.add(light);
+        Objects ball = new Sphere(0.7, new Vector(0, 0, 2));
+        if (glass) {
+            ball.setProp(new Vector(1, 1, 1), 0, Material.REFRACTIVE);
+            ball.refIndex = 1.5;
+        } else {
+            ball.setProp(new Vector(1, 1, 1), 0, Material.DIFFUSE);
+        }
+        rm.add(ball);
+        Objects floor = new Plane(0, new Vector(0, 0, 1));
+        floor.setProp(new Vector(1, 1, 1), 0, Material.DIFFUSE);
+        rm.add(floor);
+        rm.build();
+        return rm;
+    }
+
+    private static int linearGather(PhotonMap map, Vector p) {
+        double r2 = map.radius * map.radius;
+        int found = 0;
+        for (int i = 0; i < map.count; i++) {
+            double dx = p.x - map.pos[i * 3];
+            double dy = p.y - map.pos[i * 3 + 1];
+            double dz = p.z - map.pos[i * 3 + 2];
+            if (dx * dx + dy * dy + dz * dz <= r2) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Test
+    public void gatherCountsTheSamePhotonsAsALinearScan()
+            throws InterruptedException {
+        PhotonMap map = PhotonMap.build(glassScene(true), BUDGET, 10,
+                new AtomicBoolean(false));
+        assertTrue("no caustic photons landed", map.count > 1000);
+
+        Random rnd = new Random(4);
+        int nonEmpty = 0;
+        for (int k = 0; k < 2000; k++) {
+            //Around stored photons, so most queries find some
+            int j = rnd.nextInt(map.count);
+            Vector p = new Vector(
+                    map.pos[j * 3] + rnd.nextGaussian() * map.radius,
+                    map.pos[j * 3 + 1] + rnd.nextGaussian() * map.radius,
+                    map.pos[j * 3 + 2] + rnd.nextGaussian() * map.radius);
+            int want = linearGather(map, p);
+            assertEquals(want, map.gather(p));
+            if (want > 0) {
+                nonEmpty++;
+            }
+        }
+        assertTrue(nonEmpty > 1000);
+        assertEquals(0, map.gather(new Vector(100, 100, 100)));
+    }
+
+    @Test
+    public void photonsLandOnDiffuseSurfacesOnly()
+            throws InterruptedException {
+        PhotonMap map = PhotonMap.build(glassScene(true), BUDGET, 10,
+                new AtomicBoolean(false));
+        for (int i = 0; i < map.count; i++) {
+            //Only the floor is diffuse and reachable through the glass
+            assertEquals(0, map.pos[i * 3 + 2], 1e-4);
+        }
+    }
+
+    @Test
+    public void sceneWithoutCausticPathsStoresNothing()
+            throws InterruptedException {
+        PhotonMap map = PhotonMap.build(glassScene(false), 64L << 20, 10,
+                new AtomicBoolean(false));
+        assertEquals(0, map.count);
+        assertEquals(0, map.gather(new Vector(0, 0, 0)));
+    }
+
+    @Test
+    public void budgetIsNotAllocatedBeforePhotonsLand()
+            throws InterruptedException {
+        //Room for about 2^31 floats, far more than the test heap
+        PhotonMap map = PhotonMap.build(glassScene(false), 1L << 40, 10,
+                new AtomicBoolean(false));
+        assertEquals(0, map.count);
+        assertEquals(0, map.pos.length);
+    }
+
+    @Test
+    public void cancelledBuildReturnsNull() throws InterruptedException {
+        assertNull(PhotonMap.build(glassScene(true), 64L << 20, 10,
+                new AtomicBoolean(true)));
+    }
+
+    @Test
+    public void mapIsReusedOnlyForTheSameBudgetAndDepth()
+            throws InterruptedException {
+        Environment rm = glassScene(true);
+        RenderSettings set = new RenderSettings(8, 8, 1, 10);
+        set.causticBytes = BUDGET;
+        AtomicBoolean go = new AtomicBoolean(false);
+        assertTrue(PhotonMap.prepare(rm, set, go));
+        PhotonMap first = rm.caustics;
+        assertTrue(PhotonMap.prepare(rm, set, go));
+        assertSame(first, rm.caustics);
+
+        set.maxDepth = 3;
+        assertTrue(PhotonMap.prepare(rm, set, go));
+        assertNotSame(first, rm.caustics);
+        assertEquals(3, rm.caustics.maxDepth);
+
+        set.causticBytes = 0;
+        assertTrue(PhotonMap.prepare(rm, set, go));
+        assertNull(rm.caustics);
+    }
+}
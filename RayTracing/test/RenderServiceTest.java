@@ -0,0 +1,175 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RenderServiceTest {
+    private static final String SCENE = "sphere 1 0 0 -5 10 10 10 5 diffuse\n"
+            + "plane 3 1 0 0 6 6 6 0 diffuse\n";
+
+    private File dir;
+    private RenderService service;
+
+    @Before
+    public void setUp() throws IOException {
+        this.dir = Files.createTempDirectory("service").toFile();
+        this.service = new RenderService(8, this.dir, 1 << 20);
+    }
+
+    @After
+    public void tearDown() {
+        this.service.shutdown();
+        File[] files = this.dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        this.dir.delete();
+    }
+
+    private static void await(RenderJob job) throws InterruptedException {
+        assertTrue("job " + job.id + " never finished",
+                job.finished.await(60, TimeUnit.SECONDS));
+    }
+
+    private static void awaitRunning(RenderJob job)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + 60000;
+        while (job.status == RenderJob.Status.QUEUED) {
+            assertTrue("job " + job.id + " never started",
+                    System.currentTimeMillis() < end);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void finishedJobIsServedFromTheCache() throws Exception {
+        RenderSettings set = new RenderSettings(16, 16, 2, 3);
+        RenderJob first = this.service.submit(SCENE, set, 0);
+        await(first);
+        assertEquals(RenderJob.Status.DONE, first.status);
+        assertNotNull(first.png);
+
+        RenderJob again = this.service.submit(SCENE, set, 0);
+        assertTrue(again.done());
+        assertEquals(RenderJob.Status.DONE, again.status);
+        assertEquals(first.png.length, again.png.length);
+    }
+
+    @Test
+    public void failingJobDoesNotStopTheDispatcher() throws Exception {
+        //Too many pixels for one FrameBuffer, its allocation throws
+        RenderJob bad = this.service.submit(SCENE,
+                new RenderSettings(30000, 30000, 1, 3), 0);
+        await(bad);
+        assertEquals(RenderJob.Status.FAILED, bad.status);
+        assertNotNull(bad.error);
+        assertNull(this.service.cache.get(bad.key));
+
+        RenderJob good = this.service.submit(SCENE,
+                new RenderSettings(8, 8, 1, 3), 0);
+        await(good);
+        assertEquals(RenderJob.Status.DONE, good.status);
+    }
+
+    @Test
+    public void cancellingQueuedAndRunningJobs() throws Exception {
+        RenderJob running = this.service.submit(SCENE,
+                new RenderSettings(64, 64, 100000, 3), 0);
+        RenderJob queued = this.service.submit(SCENE,
+                new RenderSettings(8, 8, 1, 3), 0);
+
+        assertTrue(this.service.cancel(queued.id));
+        assertTrue(queued.done());
+        assertEquals(RenderJob.Status.CANCELLED, queued.status);
+
+        assertTrue(this.service.cancel(running.id));
+        await(running);
+        assertEquals(RenderJob.Status.CANCELLED, running.status);
+        assertNull(this.service.cache.get(running.key));
+        assertFalse(this.service.cancel(running.id));
+    }
+
+    @Test
+    public void resubmitAfterCancelStartsAFreshJob() throws Exception {
+        RenderSettings set = new RenderSettings(64, 64, 100000, 3);
+        RenderJob old = this.service.submit(SCENE, set, 0);
+        awaitRunning(old);
+        assertTrue(this.service.cancel(old.id));
+
+        //Asked for again while the cancelled job finishes its pass
+        RenderJob fresh = this.service.submit(SCENE, set, 0);
+        assertNotSame(old, fresh);
+        await(old);
+        assertEquals(RenderJob.Status.CANCELLED, old.status);
+
+        //Retiring the old job must not free the key the new one holds
+        awaitRunning(fresh);
+        assertSame(fresh, this.service.submit(SCENE, set, 0));
+        assertTrue(this.service.cancel(fresh.id));
+        await(fresh);
+    }
+
+    @Test
+    public void identicalPendingRequestsShareOneJob() {
+        RenderSettings set = new RenderSettings(64, 64, 100000, 3);
+        RenderJob a = this.service.submit(SCENE, set, 0);
+        RenderJob b = this.service.submit(SCENE, set, 5);
+        assertSame(a, b);
+        this.service.cancel(a.id);
+    }
+
+    //A surface whose normal cannot be computed, so every diffuse hit throws
+    private static final class Broken extends Sphere {
+        Broken() {
+            super(1, new Vector(0, 0, -5));
+        }
+
+        @Override
+        Vector vNormal(Vector vec) {
+            throw new IllegalStateException("broken normal");
+        }
+    }
+
+    private static void assertRenderFails(RenderSettings.Integrator in)
+            throws InterruptedException {
+        Environment rm = new Environment();
+        rm.add(new Broken());
+        rm.build();
+        RenderSettings set = new RenderSettings(16, 16, 1, 3);
+        set.integrator = in;
+        try {
+            RayTracer.renderFrame(rm, set, new FrameBuffer(16, 16),
+                    new AtomicBoolean(false));
+            fail(in + " reported a frame with failed tasks as complete");
+        } catch (IllegalStateException e) {
+            assertEquals("broken normal", e.getMessage());
+        }
+    }
+
+    @Test
+    public void pathRenderRethrowsTaskFailures() throws InterruptedException {
+        assertRenderFails(RenderSettings.Integrator.PATH);
+    }
+
+    @Test
+    public void wavefrontRenderRethrowsTaskFailures()
+            throws InterruptedException {
+        assertRenderFails(RenderSettings.Integrator.WAVEFRONT);
+    }
+}
@@ -0,0 +1,212 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RenderStatsTest {
+    private static final int W = 6, H = 4, SPP = 3;
+
+    private int width, height, spp, maxDepth, threads;
+    private boolean enabled;
+    private File dir;
+
+    //The legacy render reads its settings from RayMain
+    @Before
+    public void setUp() throws IOException {
+        this.width = RayMain.WIDTH;
+        this.height = RayMain.HEIGHT;
+        this.spp = RayMain.SPP;
+        this.maxDepth = RayMain.MAX_DEPTH;
+        this.threads = RayMain.THREADS;
+        this.enabled = RayMain.STATS;
+        this.dir = Files.createTempDirectory("stats").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        RayMain.WIDTH = this.width;
+        RayMain.HEIGHT = this.height;
+        RayMain.SPP = this.spp;
+        RayMain.MAX_DEPTH = this.maxDepth;
+        RayMain.THREADS = this.threads;
+        RayMain.STATS = this.enabled;
+        RayTracer.update();
+        RayTracer.stats = null;
+        File[] files = this.dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        this.dir.delete();
+    }
+
+    private static void useLegacySize(int w, int h, int spp) {
+        RayMain.WIDTH = w;
+        RayMain.HEIGHT = h;
+        RayMain.SPP = spp;
+        RayMain.MAX_DEPTH = 3;
+        RayTracer.update();
+        //toPixel draws into the Swing window's image later
+        Display.img = new ImageWindow(w, h);
+    }
+
+    @Test
+    public void recordAddsTheCounterToOnePixel() {
+        RenderStats stats = new RenderStats(W, H);
+        RenderStats.Counter c = new RenderStats.Counter();
+        c.rays = 3;
+        c.tests = 7;
+        c.pathDepth = 2;
+        c.endPath();
+        c.pathDepth = 1;
+        c.endPath();
+        stats.record(1, 2, 100, 2, c);
+
+        int p = 2 * W + 1;
+        assertEquals(100, stats.nanos[p]);
+        assertEquals(3, stats.rays[p]);
+        assertEquals(7, stats.tests[p]);
+        assertEquals(1.5, stats.avgDepth(p), 0);
+        assertEquals(0, stats.avgDepth(p - 1), 0);
+        assertEquals(100, stats.totalNanos());
+        //The counter starts over for the next pixel
+        assertEquals(0, c.rays);
+        assertEquals(0, c.tests);
+        assertEquals(0, c.depthSum);
+    }
+
+    @Test
+    public void missOnlyPixelCostsOneRayAndATestPerObject() {
+        //Three planes behind the camera, every ray misses all of them
+        Environment rm = new Environment();
+        for (int i = 0; i < 3; i++) {
+            rm.add(new Plane(-5 - i, new Vector(0, 0, 1)));
+        }
+        useLegacySize(W, H, SPP);
+        RayTracer.stats = new RenderStats(H, W);
+        RayTracer.raySampling(0, W, H, SPP, Display.img, rm);
+
+        RenderStats stats = RayTracer.stats;
+        for (int p = 0; p < W * H; p++) {
+            assertEquals(SPP, stats.samples[p]);
+            assertEquals(SPP, stats.rays[p]);
+            assertEquals(3 * SPP, stats.tests[p]);
+            assertEquals(0, stats.avgDepth(p), 0);
+        }
+    }
+
+    @Test
+    public void legacyBandsCoverEveryPixelOnce() throws InterruptedException {
+        //Not square, so swapped coordinates would fall off the arrays
+        useLegacySize(W, H, 2);
+        RayMain.THREADS = 4;
+        RayMain.STATS = true;
+        RayTracer.update();
+        RayTracer.main(Display.img);
+
+        RenderStats stats = RayTracer.stats;
+        assertEquals(H, stats.width);
+        assertEquals(W, stats.height);
+        for (int p = 0; p < W * H; p++) {
+            assertEquals(2, stats.samples[p]);
+            assertTrue(stats.rays[p] >= 2);
+            assertTrue(stats.tests[p] >= stats.rays[p]);
+        }
+    }
+
+    @Test
+    public void saveWritesHeatmapsAndCsv() throws IOException {
+        RenderStats stats = new RenderStats(W, H);
+        RenderStats.Counter c = new RenderStats.Counter();
+        for (int y = 0; y < H; y++) {
+            for (int x = 0; x < W; x++) {
+                c.rays = x + y;
+                c.tests = 2 * (x + y);
+                c.pathDepth = x;
+                c.endPath();
+                stats.record(x, y, 10 * (x + y), 1, c);
+            }
+        }
+        String prefix = new File(this.dir, "cost").getPath();
+        stats.save(prefix);
+
+        for (String kind : new String[] { "time", "rays", "tests",
+                "depth" }) {
+            BufferedImage img = ImageIO
+                    .read(new File(prefix + "_" + kind + ".png"));
+            assertEquals(W, img.getWidth());
+            assertEquals(H, img.getHeight());
+        }
+        //Cheapest pixel blue, most expensive red
+        BufferedImage rays = ImageIO.read(new File(prefix + "_rays.png"));
+        assertEquals(0x0000ff, rays.getRGB(0, 0) & 0xffffff);
+        assertEquals(0xff0000, rays.getRGB(W - 1, H - 1) & 0xffffff);
+
+        List<String> csv = Files.readAllLines(new File(prefix + ".csv")
+                .toPath(), StandardCharsets.UTF_8);
+        assertEquals(1 + W * H, csv.size());
+        assertEquals("x,y,nanos,rays,tests,avg_depth", csv.get(0));
+        assertEquals("2,1,30,3,6,2.0", csv.get(1 + 1 * W + 2));
+    }
+
+    //Every camera ray hits the mirror and its reflection leaves the scene,
+    //so each sample costs exactly 2 rays reaching depth 1, and each ray
+    //tests both objects (the scene is never built, so no BVH culls them)
+    private static Environment mirror() {
+        Environment rm = new Environment();
+        Objects glass = new Plane(5, new Vector(0, 0, 1));
+        glass.setProp(new Vector(1, 1, 1), 0, Material.SPECULAR);
+        rm.add(glass);
+        Objects far = new Sphere(1, new Vector(0, 0, -1000));
+        far.setProp(new Vector(1, 1, 1), 0, Material.DIFFUSE);
+        rm.add(far);
+        return rm;
+    }
+
+    private static void assertMirrorCost(RenderStats stats) {
+        for (int p = 0; p < W * H; p++) {
+            assertEquals(SPP, stats.samples[p]);
+            assertEquals(2 * SPP, stats.rays[p]);
+            assertEquals(4 * SPP, stats.tests[p]);
+            assertEquals(1.0, stats.avgDepth(p), 0);
+            assertTrue(stats.nanos[p] >= 0);
+        }
+    }
+
+    private static RenderStats render(RenderSettings.Integrator in)
+            throws InterruptedException {
+        RenderSettings set = new RenderSettings(W, H, SPP, 3);
+        set.integrator = in;
+        FrameBuffer fb = new FrameBuffer(W, H);
+        fb.stats = new RenderStats(W, H);
+        assertTrue(RayTracer.renderFrame(mirror(), set, fb,
+                new AtomicBoolean(false)));
+        assertSame(fb.stats, RayTracer.stats);
+        return fb.stats;
+    }
+
+    @Test
+    public void pathRenderRecordsEveryPass() throws InterruptedException {
+        assertMirrorCost(render(RenderSettings.Integrator.PATH));
+    }
+
+    @Test
+    public void wavefrontRenderRecordsTheSameCost()
+            throws InterruptedException {
+        assertMirrorCost(render(RenderSettings.Integrator.WAVEFRONT));
+    }
+}
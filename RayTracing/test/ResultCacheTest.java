@@ -0,0 +1,120 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResultCacheTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        this.dir = Files.createTempDirectory("cache").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = this.dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        this.dir.delete();
+    }
+
+    private static byte[] bytes(int n, int fill) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = (byte) fill;
+        }
+        return b;
+    }
+
+    private File file(String key) {
+        return new File(this.dir, key + ".png");
+    }
+
+    @Test
+    public void putThenGetReturnsSameBytes() throws IOException {
+        ResultCache cache = new ResultCache(this.dir, 1000);
+        cache.put("a", bytes(10, 1));
+        assertArrayEquals(bytes(10, 1), cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(10, cache.size);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedFirst() throws IOException {
+        ResultCache cache = new ResultCache(this.dir, 250);
+        cache.put("a", bytes(100, 1));
+        cache.put("b", bytes(100, 2));
+        //Touch a, so b becomes the oldest
+        cache.get("a");
+        cache.put("c", bytes(100, 3));
+
+        assertNull(cache.get("b"));
+        assertFalse(this.file("b").exists());
+        assertArrayEquals(bytes(100, 1), cache.get("a"));
+        assertArrayEquals(bytes(100, 3), cache.get("c"));
+        assertEquals(200, cache.size);
+    }
+
+    @Test
+    public void replacingAnEntryCountsOnlyTheNewSize() throws IOException {
+        ResultCache cache = new ResultCache(this.dir, 1000);
+        cache.put("a", bytes(100, 1));
+        cache.put("a", bytes(40, 2));
+        assertEquals(40, cache.size);
+        assertArrayEquals(bytes(40, 2), cache.get("a"));
+    }
+
+    @Test
+    public void keepsTheNewestEntryEvenIfItAloneIsTooLarge()
+            throws IOException {
+        ResultCache cache = new ResultCache(this.dir, 100);
+        cache.put("a", bytes(50, 1));
+        cache.put("big", bytes(300, 2));
+        assertNull(cache.get("a"));
+        assertArrayEquals(bytes(300, 2), cache.get("big"));
+        assertEquals(300, cache.size);
+    }
+
+    @Test
+    public void reopeningRestoresEntriesAndSize() throws IOException {
+        ResultCache cache = new ResultCache(this.dir, 1000);
+        cache.put("a", bytes(30, 1));
+        cache.put("b", bytes(20, 2));
+        ResultCache again = new ResultCache(this.dir, 1000);
+        assertEquals(50, again.size);
+        assertArrayEquals(bytes(20, 2), again.get("b"));
+    }
+
+    @Test
+    public void fileRemovedBehindTheCacheIsForgotten() throws IOException {
+        ResultCache cache = new ResultCache(this.dir, 1000);
+        cache.put("a", bytes(30, 1));
+        assertTrue(this.file("a").delete());
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size);
+    }
+
+    @Test
+    public void keyDependsOnSceneAndSettings() {
+        RenderSettings set = new RenderSettings(10, 10, 1, 2);
+        String k = ResultCache.key("scene", set);
+        assertEquals(k, ResultCache.key("scene", set));
+        assertNotEquals(k, ResultCache.key("other", set));
+        assertNotEquals(k,
+                ResultCache.key("scene", new RenderSettings(10, 10, 2, 2)));
+    }
+}
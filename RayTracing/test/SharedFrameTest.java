@@ -0,0 +1,160 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SharedFrameTest {
+    //Not a whole number of tiles, so the last one is short
+    private static final int W = 5, H = 2 * SharedFrame.TILE_ROWS + 1;
+    private static final int SEQ = 32; //offset of the sequence numbers
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        this.dir = Files.createTempDirectory("shared").toFile();
+        this.file = new File(this.dir, "live.rtfb");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = this.dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        this.dir.delete();
+    }
+
+    private static FrameBuffer gradient() {
+        FrameBuffer fb = new FrameBuffer(W, H);
+        for (int y = 0; y < H; y++) {
+            for (int x = 0; x < W; x++) {
+                fb.add(x, y, new Vector(10 * x, 10 * y, 100));
+            }
+        }
+        return fb;
+    }
+
+    //Write a tile's sequence number the way a writer in another process
+    //would, through the file rather than this JVM's mapping
+    private void setSequence(int tile, int seq) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder());
+        b.putInt(0, seq);
+        try (FileChannel ch = FileChannel.open(this.file.toPath(),
+                StandardOpenOption.WRITE)) {
+            ch.write(b, SEQ + tile * 4);
+        }
+    }
+
+    @Test
+    public void publishedRowsReadBackThroughASecondMapping()
+            throws IOException {
+        FrameBuffer fb = gradient();
+        SharedFrame out = SharedFrame.create(this.file, fb, 7);
+        out.publish(fb, 0, SharedFrame.TILE_ROWS);
+        out.setPasses(1);
+
+        SharedFrame in = SharedFrame.open(this.file);
+        assertEquals(W, in.width);
+        assertEquals(H, in.height);
+        assertEquals(3, in.tiles);
+        assertEquals(7, in.spp());
+        assertEquals(1, in.passes());
+
+        int[] argb = new int[W * H];
+        assertEquals(2, in.read(0, argb));
+        for (int p = 0; p < SharedFrame.TILE_ROWS * W; p++) {
+            assertEquals(0xFF000000 | fb.packed(p), argb[p]);
+        }
+        //Never published, reads as black at sequence 0
+        assertEquals(0, in.read(1, argb));
+        assertEquals(0xFF000000, argb[SharedFrame.TILE_ROWS * W]);
+
+        //The short last tile holds one row
+        out.publish(fb, H - 1, H);
+        assertEquals(2, in.read(2, argb));
+        assertEquals(0xFF000000 | fb.packed(W * H - 1), argb[W * H - 1]);
+    }
+
+    @Test
+    public void tileMidWriteIsNotRead() throws IOException {
+        FrameBuffer fb = gradient();
+        SharedFrame out = SharedFrame.create(this.file, fb, 1);
+        out.publish(fb, 0, H);
+        SharedFrame in = SharedFrame.open(this.file);
+
+        setSequence(1, 3);
+        int[] argb = new int[W * H];
+        assertEquals(-1, in.read(1, argb));
+        assertEquals(2, in.read(0, argb));
+
+        setSequence(1, 4);
+        assertEquals(4, in.read(1, argb));
+    }
+
+    @Test
+    public void snapshotGivesUpOnAStuckTile() throws IOException {
+        FrameBuffer fb = gradient();
+        SharedFrame.create(this.file, fb, 1).publish(fb, 0, H);
+        SharedFrame in = SharedFrame.open(this.file);
+        assertEquals(fb.packed(0),
+                LiveViewer.snapshot(in).getRGB(0, 0) & 0xFFFFFF);
+
+        setSequence(2, 5);
+        try {
+            LiveViewer.snapshot(in);
+            fail("snapshot waited on a dead writer");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Tile 2"));
+        }
+    }
+
+    //Every tile has one writer, which publishes it once per pass
+    private void assertOneWriterPerTile(RenderSettings.Integrator in)
+            throws IOException, InterruptedException {
+        int spp = 3;
+        RenderSettings set = new RenderSettings(W, H, spp, 2);
+        set.integrator = in;
+        FrameBuffer fb = new FrameBuffer(W, H);
+        fb.shared = SharedFrame.create(this.file, fb, spp);
+        assertTrue(RayTracer.renderFrame(RayTracer.render(1.6), set, fb,
+                new AtomicBoolean(false)));
+
+        SharedFrame view = SharedFrame.open(this.file);
+        assertEquals(spp, view.passes());
+        int[] argb = new int[W * H];
+        for (int t = 0; t < view.tiles; t++) {
+            assertEquals(2 * spp, view.read(t, argb));
+        }
+        for (int p = 0; p < W * H; p++) {
+            assertEquals(0xFF000000 | fb.packed(p), argb[p]);
+        }
+    }
+
+    @Test
+    public void pathRenderPublishesEachTileOncePerPass()
+            throws IOException, InterruptedException {
+        this.assertOneWriterPerTile(RenderSettings.Integrator.PATH);
+    }
+
+    @Test
+    public void wavefrontRenderPublishesEachTileOncePerPass()
+            throws IOException, InterruptedException {
+        this.assertOneWriterPerTile(RenderSettings.Integrator.WAVEFRONT);
+    }
+}